@@ -1,13 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * @author 86152
@@ -20,6 +24,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 可以访问运维接口的用户id，未配置时所有用户都不能访问
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private Long[] adminUserIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 登录拦截器 LoginInterceptor
@@ -33,6 +43,13 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1); //order是优先级，越小优先级越高
+        // 管理员拦截器 AdminInterceptor，在登录拦截器之后
+        registry.addInterceptor(new AdminInterceptor(new HashSet<>(Arrays.asList(adminUserIds))))
+                .addPathPatterns(
+                        "/voucher-order/limits",
+                        "/voucher-order/dlq/**",
+                        "/cache/**"
+                ).order(2);
         // token刷新的拦截器 RefreshTokenInterceptor
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
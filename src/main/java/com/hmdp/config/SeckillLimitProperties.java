@@ -0,0 +1,66 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀请求的准入限制配置 hmdp.seckill.limit
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill.limit")
+public class SeckillLimitProperties {
+
+    /**
+     * 每张券每秒放行的请求数（本机），小于等于0表示不限流
+     */
+    private int rate = 2000;
+    /**
+     * 令牌桶容量，允许的突发请求数
+     */
+    private int burst = 500;
+    /**
+     * 正在执行秒杀脚本的请求数超过 剩余库存*stockMultiple 后直接拒绝，小于等于0表示不启用
+     */
+    private int stockMultiple = 3;
+    /**
+     * 每张券每秒放行的请求数（所有节点共享，基于Redis），小于等于0表示不启用
+     */
+    private int globalRate = 0;
+    /**
+     * 按优惠券id单独配置的限制，未配置的项使用上面的默认值
+     */
+    private Map<Long, VoucherLimit> vouchers = new HashMap<>();
+
+    @Data
+    public static class VoucherLimit {
+        private Integer rate;
+        private Integer burst;
+        private Integer stockMultiple;
+        private Integer globalRate;
+    }
+
+    public int rateOf(Long voucherId) {
+        VoucherLimit limit = vouchers.get(voucherId);
+        return limit == null || limit.getRate() == null ? rate : limit.getRate();
+    }
+
+    public int burstOf(Long voucherId) {
+        VoucherLimit limit = vouchers.get(voucherId);
+        return limit == null || limit.getBurst() == null ? burst : limit.getBurst();
+    }
+
+    public int stockMultipleOf(Long voucherId) {
+        VoucherLimit limit = vouchers.get(voucherId);
+        return limit == null || limit.getStockMultiple() == null ? stockMultiple : limit.getStockMultiple();
+    }
+
+    public int globalRateOf(Long voucherId) {
+        VoucherLimit limit = vouchers.get(voucherId);
+        return limit == null || limit.getGlobalRate() == null ? globalRate : limit.getGlobalRate();
+    }
+}
@@ -0,0 +1,131 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheWarmupRunner;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.ShopGeoIndexer;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopSuggester;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存监控和运维接口，只有hmdp.admin.user-ids中的管理员可以访问（见MvcConfig）
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private CacheWarmupRunner cacheWarmupRunner;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private ShopGeoIndexer shopGeoIndexer;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ShopSuggester shopSuggester;
+
+    /**
+     * 查询各key前缀的本地缓存（L1）、Redis（L2）命中率
+     * @return 统计数据
+     */
+    @GetMapping("stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询各key前缀布隆过滤器的大小和拦截次数
+     * @return 统计数据
+     */
+    @GetMapping("bloom")
+    public Result queryBloomStats() {
+        return Result.ok(cacheBloomFilter.stats());
+    }
+
+    /**
+     * 查询缓存重建线程池的队列深度、重建耗时、失败次数
+     * @return 统计数据
+     */
+    @GetMapping("rebuild")
+    public Result queryRebuildStats() {
+        return Result.ok(cacheRebuildExecutor.stats());
+    }
+
+    /**
+     * 查询各key前缀访问最多的key，以及是否已被判定为热点（热点key会放入本地缓存）
+     * @return 前缀 -> top-K
+     */
+    @GetMapping("hotkeys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.topKeys());
+    }
+
+    /**
+     * 查询启动预热的进度
+     * @return 各预热任务的状态、已写入条数、耗时
+     */
+    @GetMapping("warmup")
+    public Result queryWarmupProgress() {
+        return Result.ok(cacheWarmupRunner.progress());
+    }
+
+    /**
+     * 查询店铺坐标增量更新、对账的统计
+     * @return 统计数据
+     */
+    @GetMapping("geo")
+    public Result queryGeoSyncStats() {
+        return Result.ok(shopGeoIndexer.stats());
+    }
+
+    /**
+     * 立即执行一次店铺坐标对账
+     * @return 统计数据
+     */
+    @PostMapping("geo/reconcile")
+    public Result reconcileGeo() {
+        shopGeoIndexer.reconcile();
+        return Result.ok(shopGeoIndexer.stats());
+    }
+
+    /**
+     * 查询店铺搜索索引的店铺数、词数
+     * @return 统计数据
+     */
+    @GetMapping("search")
+    public Result querySearchIndexStats() {
+        return Result.ok(shopSearchIndex.stats());
+    }
+
+    /**
+     * 查询店铺名称联想前缀树的店铺数、节点数
+     * @return 统计数据
+     */
+    @GetMapping("suggest")
+    public Result querySuggestStats() {
+        return Result.ok(shopSuggester.stats());
+    }
+}
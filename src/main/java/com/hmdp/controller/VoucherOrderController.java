@@ -4,9 +4,11 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
@@ -30,4 +32,32 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询异步下单的吞吐量和stream.orders的积压情况
+     * @return 统计数据
+     */
+    @GetMapping("stats")
+    public Result queryOrderDrainStats() {
+        return voucherOrderService.queryOrderDrainStats();
+    }
+
+    /**
+     * 查询各秒杀券的准入限制及放行、限流、削峰的请求数
+     * @return 统计数据
+     */
+    @GetMapping("limits")
+    public Result querySeckillLimits() {
+        return voucherOrderService.querySeckillLimits();
+    }
+
+    /**
+     * 把死信队列中的订单重新投递到stream.orders（数据库故障恢复后使用，下单是幂等的）
+     * @param count 最多重新投递的条数
+     * @return 重新投递的条数和剩余的死信数
+     */
+    @PostMapping("dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.replayDeadLetters(count);
+    }
 }
@@ -0,0 +1,30 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量保存订单的结果
+ */
+@Data
+public class OrderBatchResult {
+    /**
+     * 保存成功的订单
+     */
+    private List<VoucherOrder> savedOrders = new ArrayList<>();
+    /**
+     * 因一人一单被拒绝的订单
+     */
+    private List<VoucherOrder> duplicateOrders = new ArrayList<>();
+    /**
+     * 因库存不足被拒绝的订单（调用方转入死信队列）
+     */
+    private List<VoucherOrder> outOfStockOrders = new ArrayList<>();
+
+    public int getRejectedCount() {
+        return duplicateOrders.size() + outOfStockOrders.size();
+    }
+}
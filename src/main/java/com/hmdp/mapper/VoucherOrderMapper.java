@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,14 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一次查询出这批订单中（user_id, voucher_id）已经存在的订单
+     */
+    List<VoucherOrder> queryExistingOrders(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 多行INSERT IGNORE，命中uk_user_voucher唯一索引的行会被忽略
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
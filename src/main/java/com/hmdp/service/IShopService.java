@@ -16,7 +16,15 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result scrollShopByType(Long typeId, Double x, Double y, String cursor);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggestShopName(String prefix, Integer limit);
 }
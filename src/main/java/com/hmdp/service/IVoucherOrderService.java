@@ -1,9 +1,12 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.OrderBatchResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,12 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void creatVocherOrder(VoucherOrder voucherOrder);
+
+    OrderBatchResult createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderDrainStats();
+
+    Result querySeckillLimits();
+
+    Result replayDeadLetters(Integer count);
 }
@@ -1,32 +1,47 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGeoIndexer;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopSuggester;
 import com.hmdp.utils.SystemConstants;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -38,6 +53,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -47,11 +63,63 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopGeoIndexer shopGeoIndexer;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ShopSuggester shopSuggester;
+
+    /**
+     * 附近店铺的搜索半径（米）
+     */
+    @Value("${hmdp.shop.nearby-radius:5000}")
+    private double nearbyRadius;
+
+    /**
+     * Redis是否支持GEOSEARCH，第一次收到unknown command后置为false
+     */
+    private volatile boolean geoSearchSupported = true;
+
+    /**
+     * 游标分页时附近店铺快照的最大条数
+     */
+    @Value("${hmdp.shop.nearby-snapshot-size:200}")
+    private long nearbySnapshotSize;
+
+    /**
+     * 店铺详情是否使用概率提前刷新（XFetch），关闭时使用缓存穿透的写法
+     */
+    @Value("${hmdp.cache.xfetch.enabled:false}")
+    private boolean xfetchEnabled;
+
+    @PostConstruct
+    private void init() {
+        // 店铺id布隆过滤器：查询不存在的店铺时不再访问Redis和数据库
+        cacheBloomFilter.register(CACHE_SHOP_KEY, () -> listObjs(
+                query().select("id").getWrapper(), id -> ((Number) id).longValue()));
+    }
+
     @Override
     public Result queryById(Long id) {
-//        // 缓存穿透
-        Shop shop=cacheClient
-                .queryWithPassThrough(CACHE_SHOP_KEY,id, Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        Shop shop;
+        if (xfetchEnabled) {
+            // 概率提前刷新（XFetch）解决缓存击穿
+            shop = cacheClient
+                    .queryWithEarlyRefresh(CACHE_SHOP_KEY,id, Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        } else {
+            // 缓存穿透
+            shop = cacheClient
+                    .queryWithPassThrough(CACHE_SHOP_KEY,id, Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        }
 
 //        // 互斥锁解决缓存击穿
 //        Shop shop = queryWithMutex(id);
@@ -70,126 +138,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    /**
-     * 缓存击穿（通过逻辑过期解决）
-     * @param id
-     * @return
-     */
-/*    public Shop queryWithLogicalExpire(Long id)
-    {
-        String key = CACHE_SHOP_KEY+id;
-
-        String shopJson= stringRedisTemplate.opsForValue().get(key);
-
-        if(StrUtil.isBlank(shopJson))
-        {
-
-            return null;
-        }
-
-        // 4.
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop=JSONUtil.toBean((JSONObject) redisData.getData(),Shop.class);
-        LocalDateTime expireTime=redisData.getExpireTime();
-
-        // 5.
-        if(expireTime.isAfter(LocalDateTime.now()))
-        {
-            // 5.1
-            return shop;
-        }
-        // 5.2
-
-        // 6.
-        // 6.1
-        String lockKey=LOCK_SHOP_KEY+id;
-        boolean isLock=tryLock(lockKey);
-        //6.2
-        if(isLock)
-        {
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShop2Redis(id,10L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
-
-
-        return shop;
-    }*/
-
     /**
      * 缓存击穿（通过互斥锁解决）
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY+id;
-
-        String shopJson= stringRedisTemplate.opsForValue().get(key);
-
-        if(StrUtil.isNotBlank(shopJson))
-        {
-
-            return JSONUtil.toBean(shopJson,Shop.class);
-        }
-
-        //判断命中的是否是空值
-        if(shopJson!=null)
-        {
-            //返回一个错误信息
-            return null;
-        }
-
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey=LOCK_SHOP_KEY+id;
-        Shop shop= null;
-        try {
-            boolean isLock = tryLock(lockKey);
-
-            // 4.2
-            if(!isLock)
-            {
-                // 4.3
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            shop = getById(id);
-
-            //模拟重建的延时
-            Thread.sleep(200);
-
-            if(shop==null)
-            {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-
-                return null;
-            }
-
-            // 6/
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //7.释放互斥锁
-            unlock(lockKey);
-        }
-
-        //8.返回
-        return shop;
+        // 同一个key的并发未命中合并为一次数据库查询，跨节点通过Redis锁 + 重建完成通知协调
+        return cacheClient
+                .queryWithMutex(CACHE_SHOP_KEY,id, Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
     }
 
     /**
@@ -253,19 +210,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     /**
-     * 把店铺数据封装到RedisData中（RedisData新增了逻辑过期时间）
+     * 把店铺数据写入Redis，逻辑过期时间保存在缓存值的头部
      * @param id
      */
     public void saveShop2Redis(Long id,Long expireSeconds) throws InterruptedException {
         //1.查询店铺数据
         Shop shop=getById(id);
         Thread.sleep(200);
-        // 2.封装逻辑过期时间
-        RedisData redisData=new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3.写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        // 2.写入Redis，设置逻辑过期时间
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY+id,shop,expireSeconds,TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.加入布隆过滤器（包括各节点）
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        // 3.通知写入店铺坐标 shop:geo:{typeId}
+        shopGeoIndexer.publish(shop.getId(), null);
+        // 4.通知更新搜索索引、名称联想
+        shopSearchIndex.publish(shop.getId());
+        shopSuggester.publish(shop.getId());
+        // 5.返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -276,20 +244,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id不能为空！");
         }
 
-        // 1.更新数据库
+        // 1.查询修改前的类型，类型变化时需要从旧类型的坐标中删除
+        Shop old = query().select("type_id").eq("id", id).one();
+        // 2.更新数据库
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        // 3.删除缓存（包括各节点的本地缓存）
+        cacheClient.delete(CACHE_SHOP_KEY+id);
+        // 4.通知更新店铺坐标 shop:geo:{typeId}
+        shopGeoIndexer.publish(id, old == null ? null : old.getTypeId());
+        // 5.通知更新搜索索引、名称联想
+        shopSearchIndex.publish(id);
+        shopSuggester.publish(id);
 
         return Result.ok();
 
     }
 
-    /*
-       这里由于redis的版本问题还未实现
-     */
     @Override
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0！");
+        }
         //1.判断是否需要根据坐标查询
         if (x == null || y == null) {
             // 不需要坐标查询，按数据库查询
@@ -299,48 +274,337 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 返回数据
             return Result.ok(page.getRecords());
         }
-//        //2.计算分页参数
-//        int from = (current-1) * SystemConstants.DEFAULT_PAGE_SIZE;
-//        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-//
-//        //3.查询redis，按照距离排序、分页。结果：shopId、distance
-//        String key = SHOP_GEO_KEY + typeId;
-//        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()  // GEOSEARCH key BYLONLAT（圆心） x y BYRADIUS（半径） 10 WITHDISTANCE
-//                .search(
-//                        key,
-//                        GeoReference.fromCoordinate(x, y),
-//                        new Distance(5000),
-//                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end)
-//                );
-//        //4.解析出id
-//        if (results == null) {
-//            return Result.ok(Collections.emptyList());
-//        }
-//        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-//        if (list.size() <= from) {
-//            // 没有下一页了，结束
-//            return Result.ok(Collections.emptyList());
-//        }
-//        // 4.1.截取 from ~ end的部分
-//        List<Long> ids = new ArrayList<>(list.size());
-//        Map<String, Distance> distanceMap = new HashMap<>(list.size());
-//        list.stream().skip(from).forEach(result -> {
-//            // 4.2.获取店铺id
-//            String shopIdStr = result.getContent().getName();
-//            ids.add(Long.valueOf(shopIdStr));
-//            // 4.3.获取距离
-//            Distance distance = result.getDistance();
-//            distanceMap.put(shopIdStr, distance);
-//        });
-//        //5.根据id查询Shop
-//        String idStr = StrUtil.join(",", ids);
-//        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-//        for (Shop shop : shops) {
-//            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
-//        }
-//        // 6.返回
-//        return Result.ok(shops);
+        //2.计算分页参数
+        int from = (current-1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+
+        //3.查询附近的店铺，按照距离排序。结果：shopId、distance
+        List<ShopGeoIndex.GeoHit> hits = searchNearby(typeId.longValue(), x, y, end);
+        if (hits.size() <= from) {
+            // 没有下一页了，结束
+            return Result.ok(Collections.emptyList());
+        }
+        //4.截取 from ~ end的部分
+        List<ShopGeoIndex.GeoHit> pageHits = hits.subList(from, hits.size());
+
+        //5.批量查询Shop，保持距离顺序
+        // 6.返回
+        return Result.ok(toShops(pageHits));
+    }
+
+    @Override
+    public Result scrollShopByType(Long typeId, Double x, Double y, String cursor) {
+        //1.解析游标，第一页生成新的快照标识；游标只能用于生成它的类型和坐标
+        GeoCursor last = StrUtil.isBlank(cursor)
+                ? new GeoCursor(UUID.randomUUID().toString(true), typeId, x, y, -1, null) : GeoCursor.decode(cursor);
+        if (last == null || !last.matches(typeId, x, y)) {
+            return Result.fail("无效的游标！");
+        }
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+
+        //2.查询上一页之后的店铺，Redis不支持GEOSEARCH时才使用内存索引
+        List<ShopGeoIndex.GeoHit> hits = null;
+        if (geoSearchSupported) {
+            try {
+                hits = scrollNearbyByRedis(typeId, x, y, last, pageSize);
+            } catch (DataAccessException e) {
+                if (!isUnknownCommand(e)) {
+                    throw e;
+                }
+                geoSearchSupported = false;
+                log.warn("Redis不支持GEOSEARCH，附近店铺改为使用内存索引查询");
+            }
+        }
+        if (hits == null) {
+            buildGeoIndexIfAbsent();
+            hits = shopGeoIndex.searchAfter(typeId, x, y, nearbyRadius, last.getDistance(), last.getShopId(), pageSize);
+        }
+
+        //3.生成下一页的游标：最后一个店铺的距离和id
+        String next = null;
+        if (hits.size() == pageSize) {
+            ShopGeoIndex.GeoHit tail = hits.get(hits.size() - 1);
+            next = new GeoCursor(last.getToken(), typeId, x, y, tail.getDistance(), tail.getShopId()).encode();
+        }
+        //4.批量查询Shop并返回
+        return Result.ok(new CursorResult(toShops(hits), next));
+    }
+
+    /**
+     * 第一页直接 GEOSEARCH ... COUNT pageSize，不保存快照；翻到第二页时才用 GEOSEARCHSTORE ... STOREDIST
+     * 把最近的 nearbySnapshotSize 个店铺按距离存入快照ZSet，后面的页按排名从快照中读取，每页的开销与页码无关；
+     * 快照过期后重新生成，用上一页最后的店铺id（不存在时用距离）定位。
+     * 快照存满说明后面还有店铺，读完快照后用GEOSEARCH按距离继续查询
+     */
+    private List<ShopGeoIndex.GeoHit> scrollNearbyByRedis(Long typeId, Double x, Double y, GeoCursor last, int limit)
+    {
+        //1.第一页
+        if (last.getShopId() == null) {
+            return searchNearbyByRedis(typeId, x, y, limit);
+        }
+        //2.快照不存在则生成
+        String snapshotKey = SHOP_NEARBY_SNAPSHOT_KEY + last.getToken();
+        boolean created = false;
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(snapshotKey))) {
+            stringRedisTemplate.opsForGeo().searchAndStore(
+                    SHOP_GEO_KEY + typeId,
+                    snapshotKey,
+                    GeoReference.fromCoordinate(x, y),
+                    new Distance(nearbyRadius),
+                    RedisGeoCommands.GeoSearchStoreCommandArgs.newGeoSearchStoreArgs().storeDistance().sortAscending().limit(nearbySnapshotSize)
+            );
+            stringRedisTemplate.expire(snapshotKey, SHOP_NEARBY_SNAPSHOT_TTL, TimeUnit.MINUTES);
+            created = true;
+        }
+        //3.定位上一页最后一个店铺之后的位置
+        long start;
+        Long rank = stringRedisTemplate.opsForZSet().rank(snapshotKey, last.getShopId().toString());
+        if (rank != null) {
+            start = rank + 1;
+        } else {
+            // 店铺已经不在快照中（被删除、移动，或者在快照之后），按距离定位
+            Long count = stringRedisTemplate.opsForZSet().count(snapshotKey, Double.NEGATIVE_INFINITY, last.getDistance());
+            start = count == null ? 0 : count;
+        }
+        //4.读取一页，距离与GEOSEARCH WITHDIST一样保留4位小数
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .rangeWithScores(snapshotKey, start, start + limit - 1);
+        List<ShopGeoIndex.GeoHit> hits = new ArrayList<>(limit);
+        if (tuples != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                hits.add(new ShopGeoIndex.GeoHit(Long.valueOf(tuple.getValue()), Math.round(tuple.getScore() * 10000) / 10000.0));
+            }
+        }
+        if (hits.size() == limit) {
+            return hits;
+        }
+        //5.快照读完了：没有存满说明已经没有更多店铺，存满时从最后一个店铺之后继续查询
+        Long size = stringRedisTemplate.opsForZSet().zCard(snapshotKey);
+        if (size == null || size < nearbySnapshotSize) {
+            if (hits.isEmpty() && !created) {
+                stringRedisTemplate.delete(snapshotKey);
+            }
+            return hits;
+        }
+        ShopGeoIndex.GeoHit tail = hits.isEmpty() ? null : hits.get(hits.size() - 1);
+        double afterDistance = tail == null ? last.getDistance() : tail.getDistance();
+        long afterShopId = tail == null ? last.getShopId() : tail.getShopId();
+        hits.addAll(searchNearbyAfter(typeId, x, y, afterDistance, afterShopId, limit - hits.size(), size));
+        return hits;
+    }
+
+    /**
+     * 快照之后的店铺：GEOSEARCH ... COUNT n，去掉排在游标之前（距离更小，或者距离相同、id不大于游标）的店铺；
+     * 剩下的不够一页并且结果数达到了COUNT（后面可能还有）时，COUNT加倍重新查询
+     * @param skipped 游标之前至少有多少个店铺，作为第一次查询的COUNT
+     */
+    private List<ShopGeoIndex.GeoHit> searchNearbyAfter(Long typeId, Double x, Double y,
+                                                        double afterDistance, long afterShopId, int limit, long skipped)
+    {
+        int count = (int) Math.min(Integer.MAX_VALUE, skipped + limit);
+        while (true) {
+            List<ShopGeoIndex.GeoHit> results = searchNearbyByRedis(typeId, x, y, count);
+            List<ShopGeoIndex.GeoHit> hits = results.stream()
+                    .filter(hit -> hit.getDistance() > afterDistance
+                            || (hit.getDistance() == afterDistance && hit.getShopId() > afterShopId))
+                    .sorted(Comparator.comparingDouble(ShopGeoIndex.GeoHit::getDistance).thenComparing(ShopGeoIndex.GeoHit::getShopId))
+                    .limit(limit)
+                    .collect(Collectors.toList());
+            if (hits.size() == limit || results.size() < count || count == Integer.MAX_VALUE) {
+                return hits;
+            }
+            count = (int) Math.min(Integer.MAX_VALUE, count * 2L);
+        }
+    }
 
-        return null;
+    /**
+     * 批量查询Shop（一次MGET，未命中的一次IN查询），保持hits的距离顺序并设置距离
+     */
+    private List<Shop> toShops(List<ShopGeoIndex.GeoHit> hits)
+    {
+        List<Long> ids = hits.stream().map(ShopGeoIndex.GeoHit::getShopId).collect(Collectors.toList());
+        List<Shop> cached = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (int i = 0; i < cached.size(); i++) {
+            if (cached.get(i) == null) {
+                continue;
+            }
+            // 缓存中的对象可能被其它请求共享（本地缓存），复制后再设置距离
+            Shop shop = BeanUtil.copyProperties(cached.get(i), Shop.class);
+            shop.setDistance(hits.get(i).getDistance());
+            shops.add(shop);
+        }
+        return shops;
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        //1.没有关键字或者索引还没有加载完，按数据库查询
+        if (StrUtil.isBlank(name) || !shopSearchIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        //2.查询倒排索引，得到这一页的店铺id
+        List<Long> ids = shopSearchIndex.search(name, current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //3.批量查询Shop，保持排序
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        shops.removeIf(Objects::isNull);
+        return Result.ok(shops);
+    }
+
+    @Override
+    public Result suggestShopName(String prefix, Integer limit) {
+        // 与前缀树一样去掉空白、转成小写
+        String key = ShopSearchIndex.normalize(prefix);
+        if (key.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        int size = Math.max(1, Math.min(limit, SystemConstants.MAX_PAGE_SIZE));
+        //1.前缀树还没有加载完，按数据库前缀查询（REPLACE(LOWER(name), ' ', '') LIKE 'prefix%'）
+        if (!shopSuggester.isReady()) {
+            List<ShopSuggester.Suggestion> suggestions = query()
+                    .select("id", "name")
+                    .apply("REPLACE(LOWER(name), ' ', '') LIKE {0}", key + "%")
+                    .orderByDesc("sold")
+                    .last("LIMIT " + size)
+                    .list()
+                    .stream()
+                    .map(shop -> new ShopSuggester.Suggestion(shop.getId(), shop.getName()))
+                    .collect(Collectors.toList());
+            return Result.ok(suggestions);
+        }
+        //2.查询前缀树
+        return Result.ok(shopSuggester.suggest(prefix, size));
+    }
+
+    /**
+     * 查询附近的店铺：优先使用Redis GEOSEARCH，Redis不支持（6.2以下）时使用内存索引；
+     * 其它Redis异常直接抛出，不在请求线程中加载全部店铺
+     * @param typeId 店铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param limit 最多返回的条数
+     * @return 按距离从近到远排序的店铺id和距离
+     */
+    private List<ShopGeoIndex.GeoHit> searchNearby(Long typeId, Double x, Double y, int limit)
+    {
+        if (geoSearchSupported) {
+            try {
+                return searchNearbyByRedis(typeId, x, y, limit);
+            } catch (DataAccessException e) {
+                if (isUnknownCommand(e)) {
+                    // Redis版本不支持GEOSEARCH，以后都使用内存索引
+                    geoSearchSupported = false;
+                    log.warn("Redis不支持GEOSEARCH，附近店铺改为使用内存索引查询");
+                } else {
+                    throw e;
+                }
+            }
+        }
+        return searchNearbyByIndex(typeId, x, y, limit);
+    }
+
+    /**
+     * GEOSEARCH shop:geo:{typeId} FROMLONLAT x y BYRADIUS 5000 m ASC COUNT limit WITHDIST
+     */
+    public List<ShopGeoIndex.GeoHit> searchNearbyByRedis(Long typeId, Double x, Double y, int limit)
+    {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()
+                .search(
+                        SHOP_GEO_KEY + typeId,
+                        GeoReference.fromCoordinate(x, y),
+                        new Distance(nearbyRadius),
+                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(limit)
+                );
+        if (results == null) {
+            return Collections.emptyList();
+        }
+        List<ShopGeoIndex.GeoHit> hits = new ArrayList<>(results.getContent().size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results.getContent()) {
+            hits.add(new ShopGeoIndex.GeoHit(Long.valueOf(result.getContent().getName()), result.getDistance().getValue()));
+        }
+        return hits;
+    }
+
+    /**
+     * 使用内存索引查询
+     */
+    public List<ShopGeoIndex.GeoHit> searchNearbyByIndex(Long typeId, Double x, Double y, int limit)
+    {
+        buildGeoIndexIfAbsent();
+        return shopGeoIndex.search(typeId, x, y, nearbyRadius, limit);
+    }
+
+    /**
+     * 第一次使用内存索引时从数据库加载店铺坐标
+     */
+    private void buildGeoIndexIfAbsent()
+    {
+        if (!shopGeoIndex.isBuilt()) {
+            synchronized (shopGeoIndex) {
+                if (!shopGeoIndex.isBuilt()) {
+                    shopGeoIndex.rebuild(query().select("id", "type_id", "x", "y").list());
+                }
+            }
+        }
+    }
+
+    private boolean isUnknownCommand(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && message.toLowerCase().contains("unknown command")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 附近店铺的游标：快照标识（32位十六进制UUID）、查询的类型和坐标、上一页最后一个店铺的距离和id，Base64编码后返回给前端
+     */
+    @Data
+    @AllArgsConstructor
+    private static class GeoCursor {
+        private String token;
+        private Long typeId;
+        private Double x;
+        private Double y;
+        private double distance;
+        private Long shopId;
+
+        /**
+         * 快照和距离都是按生成游标时的类型、坐标计算的，换了查询条件不能继续使用
+         */
+        boolean matches(Long typeId, Double x, Double y) {
+            return Objects.equals(this.typeId, typeId) && Objects.equals(this.x, x) && Objects.equals(this.y, y);
+        }
+
+        String encode() {
+            return Base64.encodeUrlSafe(token + "," + typeId + "," + x + "," + y + "," + distance + "," + shopId);
+        }
+
+        static GeoCursor decode(String cursor) {
+            try {
+                String[] parts = Base64.decodeStr(cursor).split(",");
+                // 快照标识会拼进Redis key，只接受服务端生成的UUID
+                if (!parts[0].matches("[0-9a-f]{32}")) {
+                    return null;
+                }
+                return new GeoCursor(parts[0], Long.valueOf(parts[1]), Double.valueOf(parts[2]), Double.valueOf(parts[3]),
+                        Double.parseDouble(parts[4]), Long.valueOf(parts[5]));
+            } catch (Exception e) {
+                return null;
+            }
+        }
     }
 }
@@ -8,6 +8,7 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
@@ -28,10 +29,13 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryTypeList() {
         //从redis中查询是否有店铺列表的缓存
-        String shopTypeJson=stringRedisTemplate.opsForValue().get("cache:shopType:list");
+        String shopTypeJson=cacheClient.get("cache:shopType:list");
 
         if(shopTypeJson!=null)
         {
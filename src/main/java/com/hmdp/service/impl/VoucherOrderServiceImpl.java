@@ -2,34 +2,50 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.OrderBatchResult;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutFlags;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 
 /**
@@ -56,39 +72,203 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    /**
+     * 自身的代理对象，后台消费线程里没有AopContext，需要通过它调用事务方法
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService self;
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARDED_SCRIPT;
+    /**
+     * 同样的脚本，传入订单序列号的key时返回 {结果, 序列号}
+     */
+    private static final DefaultRedisScript<List> SECKILL_ID_SCRIPT;
+    private static final DefaultRedisScript<List> SECKILL_SHARDED_ID_SCRIPT;
+    private static final DefaultRedisScript<Long> STREAM_TRIM_SCRIPT;
     //初始化脚本
     static {
         SECKILL_SCRIPT=new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+
+        SECKILL_SHARDED_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_SHARDED_SCRIPT.setLocation(new ClassPathResource("seckill_sharded.lua"));
+        SECKILL_SHARDED_SCRIPT.setResultType(Long.class);
+
+        SECKILL_ID_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_ID_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_ID_SCRIPT.setResultType(List.class);
+
+        SECKILL_SHARDED_ID_SCRIPT=new DefaultRedisScript<>();
+        SECKILL_SHARDED_ID_SCRIPT.setLocation(new ClassPathResource("seckill_sharded.lua"));
+        SECKILL_SHARDED_ID_SCRIPT.setResultType(List.class);
+
+        STREAM_TRIM_SCRIPT=new DefaultRedisScript<>();
+        STREAM_TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        STREAM_TRIM_SCRIPT.setResultType(Long.class);
     }
 
+    /**
+     * 秒杀库存分片数，需要与创建秒杀券时（VoucherServiceImpl）使用的分片数一致
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    /**
+     * 订单id是否在秒杀脚本中生成（true：脚本内自增序列号；false：先调用RedisIdWorker再执行脚本）
+     * order前缀配置为雪花算法时，直接在本地生成id，忽略这个配置
+     */
+    @Value("${hmdp.seckill.id-in-script:false}")
+    private boolean idInScript;
+
+
+    /**
+     * 消息队列、消费者组
+     */
+    private static final String QUEUE_NAME = RedisConstants.SECKILL_ORDER_STREAM_KEY;
+    private static final String GROUP_NAME = "g1";
+    /**
+     * 死信队列，以及重试、转入死信时使用的消费者名
+     */
+    private static final String DLQ_NAME = RedisConstants.SECKILL_ORDER_DLQ_KEY;
+    private static final String RETRY_CONSUMER = "retry";
+    private static final String DLQ_CONSUMER = "dlq";
+    /**
+     * 每次XPENDING最多扫描的消息条数
+     */
+    private static final int PENDING_SCAN_LIMIT = 100;
+    /**
+     * 统计未投递消息数时最多扫描的条数
+     */
+    private static final int BACKLOG_SCAN_LIMIT = 1000;
+
+    /**
+     * 消费者数量（每个消费者在g1中有独立的名字 c1、c2...）
+     */
+    @Value("${hmdp.order.drain.consumers:1}")
+    private int consumerCount;
+
+    /**
+     * 每次XREADGROUP最多读取的消息条数
+     */
+    @Value("${hmdp.order.drain.batch-size:1}")
+    private int batchSize;
+
+    /**
+     * 失败订单的最大投递次数，超过后转入死信队列
+     */
+    @Value("${hmdp.order.retry.max-attempts:5}")
+    private int maxAttempts;
+
+    /**
+     * 重试的退避时间：base * 2^(投递次数-1)，最长不超过max
+     */
+    @Value("${hmdp.order.retry.base-backoff-ms:1000}")
+    private long baseBackoffMillis;
+
+    @Value("${hmdp.order.retry.max-backoff-ms:60000}")
+    private long maxBackoffMillis;
+
+    /**
+     * 扫描pending-list的间隔
+     */
+    @Value("${hmdp.order.retry.interval-ms:1000}")
+    private long retryIntervalMillis;
+
+    /**
+     * 秒杀脚本XADD时的近似最大长度（MAXLEN ~），只是防止Redis内存失控的兜底，必须远大于正常的积压量
+     */
+    @Value("${hmdp.order.stream.max-len:0}")
+    private long streamMaxLen;
+
+    /**
+     * 清理已确认消息的间隔
+     */
+    @Value("${hmdp.order.stream.trim-interval-ms:10000}")
+    private long trimIntervalMillis;
+
+    /**
+     * 清理后队列长度（约等于未确认+未投递的消息数）超过该值时告警
+     */
+    @Value("${hmdp.order.stream.lag-alert-threshold:10000}")
+    private long lagAlertThreshold;
 
     //线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+
+    //重试pending-list、清理stream的线程
+    private ScheduledExecutorService streamMaintenanceExecutor;
+
+    private volatile long streamLagAfterTrim;
+
+    /**
+     * Redis是否支持XTRIM MINID（6.2+），第一次收到语法错误后置为false，之后只依靠XADD MAXLEN ~ 兜底
+     */
+    private volatile boolean minIdTrimSupported = true;
+
+    private volatile boolean running = true;
+
+    //下单统计
+    private final LongAdder drainedOrders = new LongAdder();
+    private final LongAdder rejectedOrders = new LongAdder();
+    private final LongAdder drainedBatches = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder retriedOrders = new LongAdder();
+    private final LongAdder retrySucceeded = new LongAdder();
+    private final LongAdder reclaimedOrders = new LongAdder();
+    private final LongAdder deadLetters = new LongAdder();
+    private final LongAdder trimmedEntries = new LongAdder();
+    private final long drainStartMillis = System.currentTimeMillis();
 
     /*
        @PostConstruct当前类初始化完毕执行这个方法，就提交（submit）VoucherOrderHandler，开始执行
      */
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 1; i <= consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler("c" + i));
+        }
+        streamMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+        streamMaintenanceExecutor.scheduleWithFixedDelay(
+                new PendingOrderHandler(), retryIntervalMillis, retryIntervalMillis, TimeUnit.MILLISECONDS);
+        streamMaintenanceExecutor.scheduleWithFixedDelay(
+                new StreamCompactor(), trimIntervalMillis, trimIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        streamMaintenanceExecutor.shutdown();
     }
 
     //线程任务（实现异步下单）
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true)
+            while (running)
             {
                 try {
-                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
+                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 cN COUNT n BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
                     );
 
                     //2.判断消息获取是否成功
@@ -97,66 +277,253 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         //2.1如果获取失败，说明没有消息，继续下一次循环
                         continue;
                     }
-                    // 3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-
-                    //3.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //4.ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-
+                    //3.整批下单，并一次性ACK
+                    handleVoucherOrderBatch(list);
 
                 } catch (Exception e) {
+                    //处理失败的消息留在pending-list中，由PendingOrderHandler退避重试
                     log.error("处理订单异常",e);
-                    //处理异常消息（读取pendinglist中异常的消息）
-                    handlePendingList();
+                    failedBatches.increment();
                 }
             }
         }
+    }
 
-        private void handlePendingList() {
-            while (true)
-            {
-                try {
-                    //1.获取pendinglist中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
+    /**
+     * 失败订单的重试任务：
+     * 1.XPENDING 扫描g1中所有消费者（包括已经宕机的消费者）未确认的消息及其投递次数
+     * 2.空闲时间超过退避时间的消息 XCLAIM 给retry消费者，逐条重试，避免一条坏消息拖累整批
+     * 3.投递次数达到上限的消息 XCLAIM 给dlq消费者，写入stream.orders.dlq后确认
+     * 死信中的订单在Redis中已经扣减库存、记录了一人一单，数据库恢复后需要调用 {@link #replayDeadLetters} 重新投递，
+     * 下单是幂等的（已存在的订单会被过滤），重复投递不会重复下单
+     */
+    private class PendingOrderHandler implements Runnable {
 
-                    //2.判断消息获取是否成功
-                    if (list == null|| list.isEmpty())
-                    {
-                        //2.1如果获取失败，说明pendinglist中没有异常消息，结束循环
-                        break;
+        @Override
+        public void run() {
+            try {
+                //1.XPENDING stream.orders g1 {上一页最后的id} + 100，分页扫描整个pending-list，
+                //  退避中的消息不会挡住后面的消息
+                String lastId = null;
+                while (running) {
+                    Range<String> range = lastId == null ? Range.unbounded()
+                            : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+                    PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                            .pending(QUEUE_NAME, GROUP_NAME, range, PENDING_SCAN_LIMIT);
+                    int handled = 0;
+                    for (PendingMessage pending : pendingMessages) {
+                        if (!running) {
+                            return;
+                        }
+                        // 包含上一页的最后一条，跳过
+                        if (pending.getIdAsString().equals(lastId)) {
+                            continue;
+                        }
+                        handlePending(pending);
+                        lastId = pending.getIdAsString();
+                        handled++;
                     }
-                    // 3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                    if (handled == 0 || pendingMessages.size() < PENDING_SCAN_LIMIT) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                log.error("扫描pending-list异常", e);
+            }
+        }
 
-                    //3.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //4.ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+        private void handlePending(PendingMessage pending) {
+            long deliveries = pending.getTotalDeliveryCount();
+            //2.还没到退避时间（包括消费者正在处理的消息），下次再看
+            Duration backoff = backoff(deliveries);
+            if (pending.getElapsedTimeSinceLastDelivery().compareTo(backoff) < 0) {
+                return;
+            }
+            //3.投递次数达到上限，转入死信队列
+            if (deliveries >= maxAttempts) {
+                deadLetter(pending, backoff);
+                return;
+            }
+            //4.XCLAIM给retry消费者（min-idle保证多个节点不会同时认领），投递次数+1
+            List<MapRecord<String, Object, Object>> claimed = claim(RETRY_CONSUMER, backoff, pending.getId());
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            if (!RETRY_CONSUMER.equals(pending.getConsumerName())) {
+                reclaimedOrders.increment();
+            }
+            retriedOrders.increment();
+            try {
+                handleVoucherOrderBatch(claimed);
+                retrySucceeded.increment();
+            } catch (Exception e) {
+                log.error("重试订单失败，第{}次投递，id={}", deliveries + 1, pending.getIdAsString(), e);
+            }
+        }
 
+        private void deadLetter(PendingMessage pending, Duration backoff) {
+            List<MapRecord<String, Object, Object>> claimed = claim(DLQ_CONSUMER, backoff, pending.getId());
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            for (MapRecord<String, Object, Object> record : claimed) {
+                //XADD stream.orders.dlq * 原消息字段 originId deliveries
+                Map<String, String> value = new LinkedHashMap<>();
+                record.getValue().forEach((k, v) -> value.put(k.toString(), v.toString()));
+                value.put("originId", record.getId().getValue());
+                value.put("deliveries", String.valueOf(pending.getTotalDeliveryCount()));
+                stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(DLQ_NAME).ofMap(value));
+                stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, record.getId());
+                deadLetters.increment();
+                log.error("订单重试{}次仍失败，转入死信队列，id={}, value={}", pending.getTotalDeliveryCount(), record.getId(), value);
+            }
+        }
 
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常",e);
-                    //处理异常消息（读取pendinglist中异常的消息）
-                    //handlePendingList();  无需递归，因为这已经是循环了
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException interruptedException) {
-                        interruptedException.printStackTrace();
+        /**
+         * XCLAIM stream.orders g1 newOwner minIdle id，空闲时间不足（已被其它节点认领）时返回空
+         */
+        private List<MapRecord<String, Object, Object>> claim(String newOwner, Duration minIdle, RecordId id) {
+            List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(QUEUE_NAME.getBytes(StandardCharsets.UTF_8), GROUP_NAME, newOwner,
+                            RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+            List<MapRecord<String, Object, Object>> claimed = new ArrayList<>();
+            if (records == null) {
+                return claimed;
+            }
+            for (ByteRecord record : records) {
+                claimed.add(record.<String, Object, Object>deserialize(
+                        StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8));
+            }
+            return claimed;
+        }
+
+        /**
+         * 指数退避 base * 2^(deliveries-1)
+         */
+        private Duration backoff(long deliveries) {
+            int shift = (int) Math.min(Math.max(deliveries - 1, 0), 30);
+            return Duration.ofMillis(Math.min(baseBackoffMillis << shift, maxBackoffMillis));
+        }
+    }
+
+    /**
+     * 清理stream.orders中所有消费者组都已确认的消息：
+     * 每个组需要保留的最小id = 最早的未确认消息（没有则为最后投递的消息），取所有组中最小的，XTRIM MINID
+     */
+    private class StreamCompactor implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+                //1.计算可以安全删除的位置
+                String minId = null;
+                for (StreamInfo.XInfoGroup group : ops.groups(QUEUE_NAME).stream().collect(Collectors.toList())) {
+                    String groupMinId = group.lastDeliveredId();
+                    if (group.pendingCount() > 0) {
+                        PendingMessagesSummary pending = ops.pending(QUEUE_NAME, group.groupName());
+                        groupMinId = pending.minMessageId();
+                    }
+                    if (minId == null || compareRecordId(groupMinId, minId) < 0) {
+                        minId = groupMinId;
                     }
                 }
+                if (minId == null) {
+                    return;
+                }
+                //2.XTRIM stream.orders MINID ~ minId，Redis不支持时跳过
+                if (minIdTrimSupported) {
+                    trimToMinId(minId);
+                }
+                //3.清理后剩下的基本都是未确认、未投递的消息，即消费延迟
+                Long size = ops.size(QUEUE_NAME);
+                streamLagAfterTrim = size == null ? 0 : size;
+                if (streamLagAfterTrim > lagAlertThreshold) {
+                    log.warn("stream.orders积压{}条，超过告警阈值{}，下单消费跟不上", streamLagAfterTrim, lagAlertThreshold);
+                }
+            } catch (Exception e) {
+                log.error("清理stream.orders异常", e);
+            }
+        }
+
+        private void trimToMinId(String minId) {
+            try {
+                Long trimmed = stringRedisTemplate.execute(STREAM_TRIM_SCRIPT, Collections.singletonList(QUEUE_NAME), minId);
+                trimmedEntries.add(trimmed == null ? 0 : trimmed);
+            } catch (DataAccessException e) {
+                //Redis 6.2以下XTRIM不认识MINID，返回ERR syntax error
+                if (!isSyntaxError(e)) {
+                    throw e;
+                }
+                minIdTrimSupported = false;
+                log.warn("Redis不支持XTRIM MINID（需要6.2+），停止清理stream.orders，只依靠XADD MAXLEN ~ {}兜底{}",
+                        streamMaxLen, streamMaxLen > 0 ? "" : "（当前未配置hmdp.order.stream.max-len，stream.orders会一直增长）");
+            }
+        }
+
+        private boolean isSyntaxError(Throwable e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                String message = cause.getMessage();
+                if (message != null && message.toLowerCase().contains("syntax error")) {
+                    return true;
+                }
             }
+            return false;
         }
 
+        /**
+         * 按 时间戳-序列号 比较两个消息id
+         */
+        private int compareRecordId(String a, String b) {
+            RecordId idA = RecordId.of(a);
+            RecordId idB = RecordId.of(b);
+            int result = idA.getTimestamp().compareTo(idB.getTimestamp());
+            return result != 0 ? result : idA.getSequence().compareTo(idB.getSequence());
+        }
+    }
+
+    /**
+     * 一批消息在同一个事务里写入tb_voucher_order和tb_seckill_voucher，成功后一次XACK多个id
+     */
+    private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> list) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        RecordId[] recordIds = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, Object, Object> record = list.get(i);
+            voucherOrders.add(toVoucherOrder(record.getValue()));
+            recordIds[i] = record.getId();
+        }
+        // 事务方法需要通过代理对象调用
+        OrderBatchResult result = self.createVoucherOrderBatch(voucherOrders);
+        //库存不足的订单用户已经收到下单成功，转入死信队列等待人工处理（补库存后可以重新投递），不能直接丢弃
+        for (VoucherOrder rejected : result.getOutOfStockOrders()) {
+            MapRecord<String, Object, Object> record = list.get(voucherOrders.indexOf(rejected));
+            Map<String, String> value = new LinkedHashMap<>();
+            record.getValue().forEach((k, v) -> value.put(k.toString(), v.toString()));
+            value.put("originId", record.getId().getValue());
+            value.put("reason", "outOfStock");
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(DLQ_NAME).ofMap(value));
+            deadLetters.increment();
+        }
+        //ACK确认 XACK stream.orders g1 id1 id2 ...（被拒绝的订单重试也不会成功，一并确认）
+        stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, GROUP_NAME, recordIds);
+
+        drainedOrders.add(result.getSavedOrders().size());
+        rejectedOrders.add(result.getRejectedCount());
+        drainedBatches.increment();
+    }
+
+    /**
+     * 解析消息中的订单信息，脚本生成的订单id需要拼接 idTs<<32 | idSeq
+     */
+    private VoucherOrder toVoucherOrder(Map<Object, Object> value) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        if (voucherOrder.getId() == null && value.containsKey("idTs")) {
+            long timestamp = Long.parseLong(value.get("idTs").toString());
+            long count = Long.parseLong(value.get("idSeq").toString());
+            voucherOrder.setId(RedisIdWorker.compose(timestamp, count));
+        }
+        return voucherOrder;
     }
 
 //    //阻塞队列
@@ -180,55 +547,85 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //
 //    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-
-        //获取锁（无参：失败不等待）
-        boolean isLock=lock.tryLock();
-        //判断是否获取锁成功
-        if(!isLock)
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        //0.本机已知售罄，直接拒绝，不再访问Redis
+        if (seckillSoldOutFlags.isSoldOut(voucherId))
         {
-            //获取锁失败，返回错误或重试
-            log.error("不允许重复下单！");
-            return;
+            return Result.fail("库存不足");
         }
-        try {
-            //创建订单
-            proxy.creatVocherOrder(voucherOrder);
+        //0.1准入控制：限流、按剩余库存削峰
+        SeckillRateLimiter.Admission admission = seckillRateLimiter.tryAcquire(voucherId, this::queryStock);
+        if (admission == SeckillRateLimiter.Admission.SHED)
+        {
+            return Result.fail("抢购人数过多，库存即将抢完");
         }
-        finally {
-            //释放锁
-            lock.unlock();
+        if (admission == SeckillRateLimiter.Admission.THROTTLED)
+        {
+            return Result.fail("请求过于频繁，请稍后再试");
         }
-    }
-
-    private IVoucherOrderService proxy;
-    @Override
-    public Result seckillVoucher(Long voucherId) {
         // 获取用户
         Long userId = UserHolder.getUser().getId();
-        //获取订单id
-        long orderId=redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result =stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),userId.toString(),String.valueOf(orderId)
-        );
+        //1.执行lua脚本（分片模式下执行分片脚本）
+        long orderId;
+        int r = -1;
+        try {
+            if (idInScript && !redisIdWorker.isSnowflake("order")) {
+                //1.1订单id的序列号在脚本中下单成功后才自增，省去一次Redis往返，抢不到的请求也不消耗序列号
+                LocalDateTime now = LocalDateTime.now();
+                long timestamp = redisIdWorker.timestamp(now);
+                List<String> keys = Arrays.asList(QUEUE_NAME, redisIdWorker.sequenceKey("order", now));
+                List<?> result;
+                if (stockShards <= 1) {
+                    result = stringRedisTemplate.execute(
+                            SECKILL_ID_SCRIPT,
+                            keys,
+                            voucherId.toString(),userId.toString(),String.valueOf(timestamp),String.valueOf(streamMaxLen)
+                    );
+                } else {
+                    result = stringRedisTemplate.execute(
+                            SECKILL_SHARDED_ID_SCRIPT,
+                            keys,
+                            voucherId.toString(),userId.toString(),String.valueOf(timestamp),String.valueOf(stockShards),String.valueOf(streamMaxLen)
+                    );
+                }
+                r = ((Number) result.get(0)).intValue();
+                orderId = RedisIdWorker.compose(timestamp, ((Number) result.get(1)).longValue());
+            } else {
+                //1.2获取订单id（雪花算法不访问Redis）
+                orderId = redisIdWorker.nextId("order");
+                Long result;
+                if (stockShards <= 1) {
+                    result = stringRedisTemplate.execute(
+                            SECKILL_SCRIPT,
+                            Collections.singletonList(QUEUE_NAME),
+                            voucherId.toString(),userId.toString(),String.valueOf(orderId),String.valueOf(streamMaxLen)
+                    );
+                } else {
+                    result = stringRedisTemplate.execute(
+                            SECKILL_SHARDED_SCRIPT,
+                            Collections.singletonList(QUEUE_NAME),
+                            voucherId.toString(),userId.toString(),String.valueOf(orderId),String.valueOf(stockShards),String.valueOf(streamMaxLen)
+                    );
+                }
+                r = result.intValue();
+            }
+        } finally {
+            //1.3释放准入名额，按结果更新剩余库存
+            seckillRateLimiter.complete(voucherId, r);
+        }
         //2.判断结果是否为0
-        int r=result.intValue();
         if (r != 0)
         {
             //2.1不为0，代表没有购买资格（1：库存不足 2：重复下单）
+            if (r == 1)
+            {
+                seckillSoldOutFlags.markSoldOut(voucherId);
+            }
             return Result.fail(r == 1 ? "库存不足":"不能重复下单");
         }
 
-        //3.获取代理对象（事务）
-        proxy=(IVoucherOrderService) AopContext.currentProxy();
-
-        //4.返回订单id
+        //3.返回订单id
         return Result.ok(orderId);
     }
 
@@ -351,4 +748,171 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         save(voucherOrder);
 
     }
+
+    /**
+     * 一批订单在同一个事务中完成一人一单校验、扣减库存和保存订单
+     * 一批只需要：1次查询已存在的订单 + 每张券1次扣库存 + 1次多行INSERT
+     * @param voucherOrders 从stream.orders中读取到的一批订单
+     * @return 保存成功和被拒绝的订单
+     */
+    @Override
+    @Transactional
+    public OrderBatchResult createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        OrderBatchResult result = new OrderBatchResult();
+        if (voucherOrders.isEmpty()) {
+            return result;
+        }
+        //1.一人一单：过滤掉数据库中已存在的订单（包括ACK失败后重复投递的消息）以及批内重复的订单
+        Set<String> ordered = new HashSet<>();
+        for (VoucherOrder existing : getBaseMapper().queryExistingOrders(voucherOrders)) {
+            ordered.add(existing.getUserId() + ":" + existing.getVoucherId());
+        }
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!ordered.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                result.getDuplicateOrders().add(voucherOrder);
+                continue;
+            }
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+
+        //2.扣减库存：每张券一条 set stock = stock - k where voucher_id = ? and stock >= k
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + orders.size())
+                    .eq("voucher_id", entry.getKey()).ge("stock", orders.size())
+                    .update();
+            if (!success) {
+                //扣减失败，Lua脚本已经校验过库存，说明数据库与Redis的库存不一致；剩余库存够几单就先保存几单（按下单顺序）
+                int saved = deductRemainingStock(entry.getKey(), orders.size());
+                log.error("库存不足！voucherId={}, 本批订单数={}, 保存{}单", entry.getKey(), orders.size(), saved);
+                toSave.addAll(orders.subList(0, saved));
+                result.getOutOfStockOrders().addAll(orders.subList(saved, orders.size()));
+                continue;
+            }
+            toSave.addAll(orders);
+        }
+        if (toSave.isEmpty()) {
+            return result;
+        }
+
+        //3.多行INSERT保存订单，唯一索引兜底；有行被忽略说明库存已多扣，回滚整批交给pending-list重试
+        int inserted = getBaseMapper().insertIgnoreBatch(toSave);
+        if (inserted != toSave.size()) {
+            throw new IllegalStateException("批量下单时订单重复，预期插入" + toSave.size() + "条，实际插入" + inserted + "条");
+        }
+        result.setSavedOrders(toSave);
+        return result;
+    }
+
+    /**
+     * 库存不够整批扣减时，扣减 min(剩余库存, count)
+     * @return 实际扣减的数量
+     */
+    private int deductRemainingStock(Long voucherId, int count) {
+        Integer stock = queryStock(voucherId);
+        int n = stock == null ? 0 : Math.min(stock, count);
+        if (n <= 0) {
+            return 0;
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + n)
+                .eq("voucher_id", voucherId).ge("stock", n)
+                .update();
+        return success ? n : 0;
+    }
+
+    /**
+     * 查询秒杀券当前的库存（准入控制第一次访问某张券时调用）
+     */
+    private Integer queryStock(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null ? null : voucher.getStock();
+    }
+
+    @Override
+    public Result replayDeadLetters(Integer count) {
+        //1.XRANGE stream.orders.dlq - + COUNT n
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(DLQ_NAME, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        int replayed = 0;
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                //2.去掉死信附加的字段，XADD stream.orders * 原消息字段
+                Map<String, String> value = new LinkedHashMap<>();
+                record.getValue().forEach((k, v) -> value.put(k.toString(), v.toString()));
+                value.remove("originId");
+                value.remove("deliveries");
+                value.remove("reason");
+                stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(QUEUE_NAME).ofMap(value));
+                //3.XDEL stream.orders.dlq id
+                stringRedisTemplate.opsForStream().delete(DLQ_NAME, record.getId());
+                replayed++;
+            }
+        }
+        log.info("重新投递死信订单{}条", replayed);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("replayed", replayed);
+        result.put("remaining", stringRedisTemplate.opsForStream().size(DLQ_NAME));
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result querySeckillLimits() {
+        return Result.ok(seckillRateLimiter.stats());
+    }
+
+    @Override
+    public Result queryOrderDrainStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        // 1.消费者配置
+        stats.put("consumers", consumerCount);
+        stats.put("batchSize", batchSize);
+        // 2.吞吐量
+        long orders = drainedOrders.sum();
+        long seconds = Math.max(1, (System.currentTimeMillis() - drainStartMillis) / 1000);
+        stats.put("drainedOrders", orders);
+        stats.put("rejectedOrders", rejectedOrders.sum());
+        stats.put("drainedBatches", drainedBatches.sum());
+        stats.put("failedBatches", failedBatches.sum());
+        stats.put("retriedOrders", retriedOrders.sum());
+        stats.put("retrySucceeded", retrySucceeded.sum());
+        stats.put("reclaimedOrders", reclaimedOrders.sum());
+        stats.put("deadLetters", deadLetters.sum());
+        stats.put("ordersPerSecond", orders / seconds);
+        // 3.积压深度 XLEN、XPENDING、XINFO GROUPS
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        stats.put("streamLength", ops.size(QUEUE_NAME));
+        PendingMessagesSummary pending = ops.pending(QUEUE_NAME, GROUP_NAME);
+        stats.put("pendingCount", pending == null ? 0 : pending.getTotalPendingMessages());
+        stats.put("undeliveredCount", countUndelivered(ops));
+        stats.put("minIdTrimSupported", minIdTrimSupported);
+        stats.put("trimmedEntries", trimmedEntries.sum());
+        stats.put("lagAfterTrim", streamLagAfterTrim);
+        stats.put("lagAlertThreshold", lagAlertThreshold);
+        stats.put("lagging", streamLagAfterTrim > lagAlertThreshold);
+        // 4.售罄后在本地拦截的请求数
+        stats.put("soldOutShortCircuits", seckillSoldOutFlags.getShortCircuits());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 统计还没有投递给任何消费者的消息数（最多扫描BACKLOG_SCAN_LIMIT条）
+     */
+    private long countUndelivered(StreamOperations<String, Object, Object> ops) {
+        StreamInfo.XInfoGroups groups = ops.groups(QUEUE_NAME);
+        String lastDeliveredId = groups.stream()
+                .filter(group -> GROUP_NAME.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst()
+                .orElse("0");
+        List<MapRecord<String, Object, Object>> undelivered = ops.range(
+                QUEUE_NAME,
+                Range.rightUnbounded(Range.Bound.exclusive(lastDeliveredId)),
+                RedisZSetCommands.Limit.limit().count(BACKLOG_SCAN_LIMIT)
+        );
+        return undelivered == null ? 0 : undelivered.size();
+    }
 }
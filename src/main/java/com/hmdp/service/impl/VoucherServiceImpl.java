@@ -7,12 +7,16 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
@@ -33,6 +37,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    /**
+     * 秒杀库存分片数，大于1时库存拆到 seckill:stock:{id}:{0..K-1} 多个key中
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -54,6 +67,28 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        if (stockShards <= 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+            seckillSoldOutFlags.markRestocked(voucher.getId());
+            return;
+        }
+        saveShardedStock(voucher.getId(), voucher.getStock(), stockShards);
+    }
+
+    /**
+     * 把库存平均拆到K个分片中，余数分给前面的分片
+     * @param voucherId 优惠券id
+     * @param stock 总库存
+     * @param shards 分片数
+     */
+    public void saveShardedStock(Long voucherId, int stock, int shards) {
+        Map<String, String> shardStocks = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            shardStocks.put(SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(shardStock));
+        }
+        // MSET 一次写入所有分片
+        stringRedisTemplate.opsForValue().multiSet(shardStocks);
+        seckillSoldOutFlags.markRestocked(voucherId);
     }
 }
@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_ADD_CHANNEL;
+
+/**
+ * 防止缓存穿透的布隆过滤器，按key前缀（实体类型）区分
+ * 启动时从数据库加载全部id，新增数据时通过Redis发布订阅通知所有节点，并定时全量重建；
+ * 布隆过滤器判断不存在的id一定不存在，可以直接返回，不再访问Redis和数据库
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 期望的误判率
+     */
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 预估的数据量，实际数据量更大时按实际数据量的2倍分配
+     */
+    @Value("${hmdp.cache.bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+
+    /**
+     * 全量重建的间隔（分钟），小于等于0表示不重建
+     */
+    @Value("${hmdp.cache.bloom.rebuild-interval-minutes:60}")
+    private long rebuildIntervalMinutes;
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-bloom-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CacheBloomFilter(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_ADD_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        if (enabled && rebuildIntervalMinutes > 0) {
+            rebuildExecutor.scheduleWithFixedDelay(this::rebuildAll,
+                    rebuildIntervalMinutes, rebuildIntervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * 注册某个key前缀的布隆过滤器，并立即从数据库加载
+     * @param keyPrefix 缓存key前缀，例如 cache:shop:
+     * @param idLoader 查询全部id的函数，重建时也会调用
+     */
+    public void register(String keyPrefix, Supplier<Collection<Long>> idLoader)
+    {
+        if (!enabled) {
+            return;
+        }
+        Filter filter = new Filter(idLoader);
+        // 加载完成后才开始拦截
+        filter.rebuild();
+        filters.put(keyPrefix, filter);
+        log.info("布隆过滤器加载完成 keyPrefix={}, {}", keyPrefix, filter.toMap());
+    }
+
+    /**
+     * 判断id是否可能存在，没有注册过滤器的前缀一律返回true
+     * @param keyPrefix 缓存key前缀
+     * @param id 数据id
+     * @return false代表一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id)
+    {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null || !(id instanceof Number)) {
+            return true;
+        }
+        if (filter.current.mightContain(((Number) id).longValue())) {
+            return true;
+        }
+        filter.rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后调用，写入本机过滤器并通知其它节点
+     * @param keyPrefix 缓存key前缀
+     * @param id 数据id
+     */
+    public void add(String keyPrefix, Long id)
+    {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        filter.add(id);
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_ADD_CHANNEL, keyPrefix + id);
+    }
+
+    /**
+     * 各key前缀的过滤器大小和拦截次数
+     */
+    public Map<String, Map<String, Object>> stats()
+    {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        filters.forEach((prefix, filter) -> stats.put(prefix, filter.toMap()));
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        filters.forEach((prefix, filter) -> {
+            if (key.startsWith(prefix)) {
+                filter.add(Long.valueOf(key.substring(prefix.length())));
+            }
+        });
+    }
+
+    private void rebuildAll()
+    {
+        filters.forEach((prefix, filter) -> {
+            try {
+                filter.rebuild();
+                log.debug("布隆过滤器重建完成 keyPrefix={}, {}", prefix, filter.toMap());
+            } catch (Exception e) {
+                // 重建失败继续使用旧的过滤器
+                log.error("布隆过滤器重建失败 keyPrefix={}", prefix, e);
+            }
+        });
+    }
+
+    /**
+     * 某个key前缀的过滤器：从数据库加载id期间新增的id记录下来，新过滤器建好后补写，避免重建时丢失
+     */
+    private class Filter {
+        private final Supplier<Collection<Long>> idLoader;
+        private final LongAdder rejected = new LongAdder();
+        private volatile LongBloomFilter current;
+        /**
+         * 新增id与替换过滤器共用的锁，新增的id要么写入旧过滤器后被补写，要么直接写入新过滤器
+         */
+        private final Object swapLock = new Object();
+        /**
+         * 重建期间新增的id，不在重建时为null
+         */
+        private Set<Long> addedWhileRebuilding;
+
+        Filter(Supplier<Collection<Long>> idLoader) {
+            this.idLoader = idLoader;
+        }
+
+        void add(long id) {
+            synchronized (swapLock) {
+                if (current != null) {
+                    current.put(id);
+                }
+                if (addedWhileRebuilding != null) {
+                    addedWhileRebuilding.add(id);
+                }
+            }
+        }
+
+        synchronized void rebuild() {
+            synchronized (swapLock) {
+                addedWhileRebuilding = new HashSet<>();
+            }
+            try {
+                Collection<Long> ids = idLoader.get();
+                LongBloomFilter next = new LongBloomFilter(Math.max(expectedInsertions, ids.size() * 2L), fpp);
+                for (Long id : ids) {
+                    next.put(id);
+                }
+                // 补写加载期间新增的id后替换
+                synchronized (swapLock) {
+                    for (Long id : addedWhileRebuilding) {
+                        next.put(id);
+                    }
+                    current = next;
+                }
+            } finally {
+                synchronized (swapLock) {
+                    addedWhileRebuilding = null;
+                }
+            }
+        }
+
+        Map<String, Object> toMap() {
+            LongBloomFilter filter = current;
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("bits", filter.bitSize);
+            map.put("hashes", filter.hashes);
+            map.put("insertions", filter.insertions.sum());
+            map.put("fpp", fpp);
+            map.put("rejected", rejected.sum());
+            return map;
+        }
+    }
+
+    /**
+     * 存放long类型id的布隆过滤器，位数组用AtomicLongArray实现无锁并发写入
+     */
+    private static class LongBloomFilter {
+        private final long bitSize;
+        private final int hashes;
+        private final AtomicLongArray bits;
+        private final LongAdder insertions = new LongAdder();
+
+        LongBloomFilter(long expectedInsertions, double fpp) {
+            // m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+            long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+            this.hashes = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+            this.bits = new AtomicLongArray((int) (bitSize / 64));
+        }
+
+        void put(long id) {
+            long hash1 = mix(id);
+            long hash2 = mix(hash1);
+            for (int i = 0; i < hashes; i++) {
+                long index = Math.floorMod(hash1 + i * hash2, bitSize);
+                long mask = 1L << index;
+                int slot = (int) (index >>> 6);
+                long word;
+                do {
+                    word = bits.get(slot);
+                    if ((word & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(slot, word, word | mask));
+            }
+            insertions.increment();
+        }
+
+        boolean mightContain(long id) {
+            long hash1 = mix(id);
+            long hash2 = mix(hash1);
+            for (int i = 0; i < hashes; i++) {
+                long index = Math.floorMod(hash1 + i * hash2, bitSize);
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * splitmix64，把连续的id打散
+         */
+        private static long mix(long x) {
+            x += 0x9E3779B97F4A7C15L;
+            x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+            x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+            return x ^ (x >>> 31);
+        }
+    }
+}
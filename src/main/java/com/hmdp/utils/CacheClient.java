@@ -1,21 +1,53 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.text.replacer.StrReplacer;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.protocol.ProtocolVersion;
+import io.lettuce.core.support.caching.CacheAccessor;
+import io.lettuce.core.support.caching.CacheFrontend;
+import io.lettuce.core.support.caching.ClientSideCaching;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.TimeoutUtils;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -26,28 +58,359 @@ import static com.hmdp.utils.RedisConstants.*;
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    /**
+     * 本地缓存中表示空值的占位对象
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * 互斥锁模式下，等待其它节点重建缓存的最大次数，超过后直接查询数据库
+     */
+    private static final int MUTEX_MAX_WAITS = 3;
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final CacheBloomFilter bloomFilter;
+
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    /**
+     * 过期时间随机增加的比例，例如0.1表示增加0~10%，避免同时写入的key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter-ratio:0.1}")
+    private double ttlJitterRatio;
+
+    /**
+     * 写入时使用的编码器，读取时按头部的codecId选择解码器
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    private CacheCodec codec;
+
+    private final Map<Byte, CacheCodec> codecs = new HashMap<>();
+
+    /**
+     * 本地缓存（L1）的最大条数、写入后的有效期（秒）
+     */
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+
+    @Value("${hmdp.cache.local.expire-seconds:60}")
+    private long localExpireSeconds;
+
+    /**
+     * 启用本地缓存的key前缀，例如 cache:shop:
+     */
+    @Value("${hmdp.cache.local.prefixes:}")
+    private String[] localPrefixes;
+
+    private final Set<String> localKeyPrefixes = new HashSet<>();
+
+    /**
+     * 热点key可以放入本地缓存的前缀，只配置修改数据后会调用delete广播失效的前缀，
+     * 否则其它节点本地缓存中的热点key在过期前一直是旧数据
+     */
+    @Value("${hmdp.cache.hotkey.prefixes:cache:shop:}")
+    private String[] hotKeyPrefixes;
+
+    private final Set<String> hotKeyLocalPrefixes = new HashSet<>();
+
+    /**
+     * 是否启用Redis服务端辅助的客户端缓存（RESP3 CLIENT TRACKING）
+     */
+    @Value("${hmdp.cache.tracking.enabled:false}")
+    private boolean trackingEnabled;
+
+    /**
+     * 通过客户端缓存读取的key前缀，例如 cache:shop:、cache:shopType:list
+     */
+    @Value("${hmdp.cache.tracking.prefixes:}")
+    private String[] trackingPrefixes;
+
+    @Value("${hmdp.cache.tracking.maximum-size:10000}")
+    private long trackingMaximumSize;
+
+    @Value("${spring.redis.host}")
+    private String redisHost;
+
+    @Value("${spring.redis.port}")
+    private int redisPort;
+
+    @Value("${spring.redis.password:}")
+    private String redisPassword;
+
+    private final List<String> trackingKeyPrefixes = new ArrayList<>();
+
+    /**
+     * 客户端缓存使用单独的RESP3连接，服务端在key被修改时推送失效消息
+     */
+    private RedisClient trackingClient;
+    private StatefulRedisConnection<String, byte[]> trackingConnection;
+    private Map<String, byte[]> trackingStore;
+    private CacheFrontend<String, byte[]> trackingFrontend;
+
+    /**
+     * L1：保存反序列化后的对象，按条数和写入时间淘汰
+     */
+    private Cache<String, Object> localCache;
+
+    /**
+     * 各key前缀的命中统计
+     */
+    private final Map<String, CacheStats> cacheStats = new ConcurrentHashMap<>();
+
+    /**
+     * 客户端缓存命中次数
+     */
+    private final LongAdder trackingHits = new LongAdder();
+
+    /**
+     * 本节点正在加载的key：同一个key的并发未命中共享同一个加载结果
+     */
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其它节点重建完成的key，收到 cache:loaded 通知后唤醒
+     */
+    private final Map<String, CompletableFuture<Void>> remoteLoads = new ConcurrentHashMap<>();
+
+    /**
+     * XFetch的beta，越大越早刷新
+     */
+    @Value("${hmdp.cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                       CacheBloomFilter bloomFilter, CacheRebuildExecutor rebuildExecutor, HotKeyDetector hotKeyDetector,
+                       List<CacheCodec> codecs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.bloomFilter = bloomFilter;
+        this.rebuildExecutor = rebuildExecutor;
+        this.hotKeyDetector = hotKeyDetector;
+        for (CacheCodec cacheCodec : codecs) {
+            this.codecs.put(cacheCodec.id(), cacheCodec);
+        }
+        // 其它节点修改数据后，通过发布订阅删除本地缓存
+        container.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 其它节点重建缓存后，通过发布订阅唤醒等待的线程
+        container.addMessageListener(this, new ChannelTopic(CACHE_LOADED_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String prefix : localPrefixes) {
+            if (StrUtil.isNotBlank(prefix)) {
+                localKeyPrefixes.add(prefix.trim());
+            }
+        }
+        for (String prefix : hotKeyPrefixes) {
+            if (StrUtil.isNotBlank(prefix)) {
+                hotKeyLocalPrefixes.add(prefix.trim());
+            }
+        }
+        codec = codecs.values().stream()
+                .filter(cacheCodec -> cacheCodec.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码：" + codecName));
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localExpireSeconds, TimeUnit.SECONDS)
+                .build();
+        if (trackingEnabled) {
+            initTracking();
+        }
+    }
+
+    /**
+     * 开启客户端缓存：CLIENT TRACKING on，本地保存读到的原始值，直到服务端推送失效
+     */
+    private void initTracking()
+    {
+        for (String prefix : trackingPrefixes) {
+            if (StrUtil.isNotBlank(prefix)) {
+                trackingKeyPrefixes.add(prefix.trim());
+            }
+        }
+        RedisURI.Builder uri = RedisURI.builder().withHost(redisHost).withPort(redisPort);
+        if (StrUtil.isNotBlank(redisPassword)) {
+            uri.withPassword(redisPassword.toCharArray());
+        }
+        trackingClient = RedisClient.create(uri.build());
+        trackingClient.setOptions(ClientOptions.builder().protocolVersion(ProtocolVersion.RESP3).build());
+        trackingConnection = trackingClient.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+        // 本地存储有上限，被淘汰的key服务端仍会推送失效，忽略即可
+        trackingStore = Caffeine.newBuilder().maximumSize(trackingMaximumSize).<String, byte[]>build().asMap();
+        trackingFrontend = ClientSideCaching.enable(
+                CacheAccessor.forMap(trackingStore), trackingConnection, TrackingArgs.Builder.enabled());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (trackingFrontend != null) {
+            trackingFrontend.close();
+            trackingConnection.close();
+            trackingClient.shutdown();
+        }
+    }
+
+    /**
+     * 读取Redis中的字符串，启用客户端缓存的key优先从本地读取
+     * @param key
+     * @return
+     */
+    public String get(String key)
+    {
+        byte[] bytes = getRaw(key);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取Redis中的原始字节，启用客户端缓存的key优先从本地读取
+     */
+    private byte[] getRaw(String key)
+    {
+        if (trackingFrontend == null || !isTracked(key)) {
+            return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+        }
+        if (trackingStore.containsKey(key)) {
+            trackingHits.increment();
+        }
+        return trackingFrontend.get(key);
+    }
+
+    /**
+     * 读取CacheEntry，旧格式或未知编码的值当作未命中处理，重建时会被覆盖
+     */
+    private byte[] getEntry(String key)
+    {
+        byte[] entry = getRaw(key);
+        if (entry == null || isReadable(entry)) {
+            return entry;
+        }
+        log.debug("缓存值格式无法识别，当作未命中处理，key={}", key);
+        return null;
+    }
+
+    private boolean isReadable(byte[] entry)
+    {
+        return CacheEntry.isEntry(entry) && (CacheEntry.isNull(entry) || codecs.containsKey(CacheEntry.codecId(entry)));
+    }
+
+    private <R> R decode(byte[] entry, Class<R> type)
+    {
+        return CacheEntry.decode(codecs.get(CacheEntry.codecId(entry)), entry, type);
+    }
+
+    /**
+     * 写入原始字节，ttlSeconds小于等于0表示不设置过期时间
+     */
+    private void setRaw(String key, byte[] value, long ttlSeconds)
+    {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> ttlSeconds > 0
+                ? connection.setEx(rawKey(key), ttlSeconds, value)
+                : connection.set(rawKey(key), value));
+    }
+
+    private static byte[] rawKey(String key)
+    {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean isTracked(String key)
+    {
+        for (String prefix : trackingKeyPrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit)
     {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, CacheEntry.encode(codec, value, 0, 0), jitteredSeconds(time, unit));
+        localCache.invalidate(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit)
     {
-        //设置逻辑过期
-        RedisData redisData=new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        //设置逻辑过期（写在头部），不设置真实的过期时间
+        long expireMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(jitteredSeconds(time, unit));
 
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, CacheEntry.encode(codec, value, expireMillis, 0), 0);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 用管道批量写入缓存，过期时间加上随机值，避免同一批key同时过期
+     * @param values key -> 数据
+     * @param time
+     * @param unit
+     */
+    public void setBatch(Map<String, ?> values, Long time, TimeUnit unit)
+    {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) ->
+                    connection.setEx(rawKey(key), jitteredSeconds(time, unit), CacheEntry.encode(codec, value, 0, 0)));
+            return null;
+        });
+        values.keySet().forEach(localCache::invalidate);
+    }
+
+    /**
+     * 写入空值，防止缓存穿透
+     */
+    private void setNull(String key)
+    {
+        setRaw(key, CacheEntry.NULL_ENTRY, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+    }
+
+    /**
+     * 删除缓存（数据库更新后调用），并通知所有节点删除本地缓存
+     * @param key
+     */
+    public void delete(String key)
+    {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (CACHE_LOADED_CHANNEL.equals(channel)) {
+            CompletableFuture<Void> waiter = remoteLoads.remove(key);
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+            return;
+        }
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 各key前缀的L1、L2命中率
+     */
+    public Map<String, Map<String, Object>> stats()
+    {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        cacheStats.forEach((prefix, cacheStat) -> stats.put(prefix, cacheStat.toMap()));
+        if (trackingFrontend != null) {
+            Map<String, Object> tracking = new LinkedHashMap<>();
+            tracking.put("prefixes", trackingKeyPrefixes);
+            tracking.put("size", trackingStore.size());
+            tracking.put("hits", trackingHits.sum());
+            stats.put("tracking", tracking);
+        }
+        return stats;
     }
 
     /**
@@ -65,38 +428,422 @@ public class CacheClient {
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit)
     {
         String key = keyPrefix+id;
+        CacheStats stat = statsOf(keyPrefix);
+        hotKeyDetector.record(keyPrefix, key);
 
-        String json= stringRedisTemplate.opsForValue().get(key);
+        // 0.布隆过滤器判断不存在，直接返回
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            stat.bloomRejected.increment();
+            return null;
+        }
 
-        if(StrUtil.isNotBlank(json))
+        // 1.查询本地缓存
+        Object cached = getLocal(keyPrefix, key);
+        if(cached!=null)
         {
-
-            return JSONUtil.toBean(json,type);
+            stat.l1Hits.increment();
+            return cached == NULL_VALUE ? null : type.cast(cached);
         }
 
-        //判断命中的是否是空值
-        if(json!=null)
+        // 2.查询Redis（命中空值时返回null）
+        byte[] entry= getEntry(key);
+
+        if(entry!=null)
         {
-            //返回一个错误信息
+            stat.l2Hits.increment();
+            return fromEntry(keyPrefix, key, entry, type);
+        }
+
+        // 3.查询数据库（同一个key只有一个线程查询，其它线程等待结果）
+        stat.misses.increment();
+        return loadOnce(stat, key, () -> loadFromDb(keyPrefix, key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 缓存击穿（使用互斥锁解决）
+     * 本节点内同一个key只有一个线程去抢Redis锁，其它线程等待它的结果；
+     * 没抢到锁的节点等待持有锁的节点重建完成的通知，而不是休眠后重试
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit)
+    {
+        String key = keyPrefix+id;
+        CacheStats stat = statsOf(keyPrefix);
+        hotKeyDetector.record(keyPrefix, key);
+
+        // 0.布隆过滤器判断不存在，直接返回
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            stat.bloomRejected.increment();
             return null;
         }
 
+        // 1.查询本地缓存
+        Object cached = getLocal(keyPrefix, key);
+        if(cached!=null)
+        {
+            stat.l1Hits.increment();
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+
+        // 2.查询Redis
+        byte[] entry= getEntry(key);
+        if(entry!=null)
+        {
+            stat.l2Hits.increment();
+            return fromEntry(keyPrefix, key, entry, type);
+        }
+
+        // 3.重建缓存
+        stat.misses.increment();
+        return loadOnce(stat, key, () -> loadWithLock(keyPrefix, key, id, type, dbFallback, time, unit));
+    }
+
+    /**
+     * 获取Redis锁后重建缓存，没获取到锁则等待其它节点重建完成
+     */
+    private <R,ID> R loadWithLock(String keyPrefix, String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit)
+    {
+        String lockKey = LOCK_CACHE_KEY + key;
+        for (int i = 0; i < MUTEX_MAX_WAITS; i++) {
+            // 1.获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    // 1.1.获取锁之后再查一次Redis，其它节点可能刚刚重建完
+                    byte[] entry = getEntry(key);
+                    if (entry != null) {
+                        return fromEntry(keyPrefix, key, entry, type);
+                    }
+                    // 1.2.查询数据库并写入Redis
+                    return loadFromDb(keyPrefix, key, id, dbFallback, time, unit);
+                } finally {
+                    // 1.3.释放锁并通知其它节点
+                    unlock(lockKey);
+                    stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+                }
+            }
+
+            // 2.其它节点持有锁，等待重建完成的通知
+            CompletableFuture<Void> loaded = new CompletableFuture<>();
+            remoteLoads.put(key, loaded);
+            try {
+                // 2.1.注册之后再查一次Redis，避免错过通知
+                byte[] entry = getEntry(key);
+                if (entry == null) {
+                    // 2.2.最多等待锁的有效期，持有锁的节点挂了就重新抢锁
+                    awaitQuietly(key, loaded);
+                    entry = getEntry(key);
+                }
+                if (entry != null) {
+                    return fromEntry(keyPrefix, key, entry, type);
+                }
+            } finally {
+                remoteLoads.remove(key, loaded);
+            }
+        }
+
+        // 3.多次等待仍然没有结果，直接查询数据库
+        log.warn("等待缓存重建超时，直接查询数据库，key={}", key);
+        return loadFromDb(keyPrefix, key, id, dbFallback, time, unit);
+    }
+
+    private void awaitQuietly(String key, CompletableFuture<Void> loaded)
+    {
+        try {
+            loaded.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // 超时后由调用方重新抢锁
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建被中断，key=" + key, e);
+        }
+    }
+
+    /**
+     * 单飞加载：同一个key并发未命中时，只有第一个线程执行loader，其它线程等待它的结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R loadOnce(CacheStats stat, String key, Supplier<R> loader)
+    {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 已经有线程在加载这个key，等待它的结果
+            stat.coalesced.increment();
+            try {
+                return (R) inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    /**
+     * 查询数据库并写入缓存，不存在的数据写入空值
+     */
+    private <R,ID> R loadFromDb(String keyPrefix, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit)
+    {
         R r= dbFallback.apply(id);
         if(r==null)
         {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
+            putLocal(keyPrefix, key, NULL_VALUE);
 
             return null;
         }
 
         this.set(key, r, time, unit);
+        putLocal(keyPrefix, key, r);
+
+        return r;
+    }
+
+    /**
+     * 解码Redis中的值，空值表示数据不存在
+     */
+    private <R> R fromEntry(String keyPrefix, String key, byte[] entry, Class<R> type)
+    {
+        if (CacheEntry.isNull(entry)) {
+            putLocal(keyPrefix, key, NULL_VALUE);
+            return null;
+        }
+        R r = decode(entry, type);
+        putLocal(keyPrefix, key, r);
+        return r;
+    }
+
+    /**
+     * 批量查询：一次MGET查询Redis，未命中的id一次性查询数据库，再用管道批量写回Redis
+     * @param keyPrefix（类似CACHE_SHOP_KEY的前缀）
+     * @param ids 查询的id，可以重复
+     * @param type
+     * @param dbFallback 批量查询数据库的函数，参数是未命中的id，返回 id -> 数据
+     * @param time
+     * @param unit
+     * @return 与ids一一对应的结果，不存在的数据为null
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                     Function<List<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit)
+    {
+        CacheStats stat = statsOf(keyPrefix);
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+
+        // 1.去重，查询本地缓存，布隆过滤器判断不存在的直接跳过
+        List<ID> redisIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilter.mightContain(keyPrefix, id)) {
+                stat.bloomRejected.increment();
+                continue;
+            }
+            hotKeyDetector.record(keyPrefix, keyPrefix + id);
+            Object cached = getLocal(keyPrefix, keyPrefix + id);
+            if (cached != null) {
+                stat.l1Hits.increment();
+                if (cached != NULL_VALUE) {
+                    found.put(id, type.cast(cached));
+                }
+                continue;
+            }
+            redisIds.add(id);
+        }
+
+        // 2.一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            List<String> keys = redisIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            byte[][] rawKeys = keys.stream().map(CacheClient::rawKey).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] entry = values == null ? null : values.get(i);
+                if (entry == null || !isReadable(entry)) {
+                    missIds.add(redisIds.get(i));
+                    continue;
+                }
+                stat.l2Hits.increment();
+                R r = fromEntry(keyPrefix, keys.get(i), entry, type);
+                if (r != null) {
+                    found.put(redisIds.get(i), r);
+                }
+            }
+        }
+
+        // 3.未命中的id一次性查询数据库，并用管道写回Redis
+        if (!missIds.isEmpty()) {
+            stat.misses.add(missIds.size());
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            found.putAll(loaded);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        // 将空值写入redis
+                        connection.setEx(rawKey(key), TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), CacheEntry.NULL_ENTRY);
+                        putLocal(keyPrefix, key, NULL_VALUE);
+                    } else {
+                        // 过期时间加上随机值，避免同一批key同时过期
+                        connection.setEx(rawKey(key), jitteredSeconds(time, unit), CacheEntry.encode(codec, r, 0, 0));
+                        putLocal(keyPrefix, key, r);
+                    }
+                }
+                return null;
+            });
+        }
+
+        // 4.按ids的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * 过期时间加上 0 ~ ttlJitterRatio 比例的随机值
+     */
+    private long jitteredSeconds(Long time, TimeUnit unit)
+    {
+        long seconds = unit.toSeconds(time);
+        return seconds + ThreadLocalRandom.current().nextLong((long) (seconds * ttlJitterRatio) + 1);
+    }
+
+    /**
+     * 写入缓存，同时保存重建耗时和过期时间，供概率提前刷新使用
+     * @param key
+     * @param value
+     * @param deltaMillis 重建这条数据的耗时
+     * @param time
+     * @param unit
+     */
+    public void setWithDelta(String key, Object value, long deltaMillis, Long time, TimeUnit unit)
+    {
+        long seconds = jitteredSeconds(time, unit);
+        long expireMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
 
+        // 真实的过期时间与头部的过期时间一致，没有被提前刷新的key到期后正常失效
+        setRaw(key, CacheEntry.encode(codec, value, expireMillis, deltaMillis), seconds);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 缓存击穿（使用概率提前刷新解决，XFetch算法）
+     * 每次读取时以 now - delta * beta * ln(rand) >= expireTime 判断是否提前刷新：
+     * 离过期时间越近、重建越慢，刷新的概率越大，热点key会在过期前被某个请求在后台刷新，
+     * 不需要加锁，也不会像逻辑过期那样在重建完成前一直返回旧数据
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit)
+    {
+        String key = keyPrefix+id;
+        CacheStats stat = statsOf(keyPrefix);
+        hotKeyDetector.record(keyPrefix, key);
+
+        // 0.布隆过滤器判断不存在，直接返回
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            stat.bloomRejected.increment();
+            return null;
+        }
+
+        // 1.查询本地缓存
+        Object cached = getLocal(keyPrefix, key);
+        if(cached!=null)
+        {
+            stat.l1Hits.increment();
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+
+        // 2.查询Redis
+        byte[] entry= getEntry(key);
+        if(entry==null)
+        {
+            // 3.未命中，同一个key只有一个线程查询数据库
+            stat.misses.increment();
+            return loadOnce(stat, key, () -> loadWithDelta(keyPrefix, key, id, dbFallback, time, unit));
+        }
+        stat.l2Hits.increment();
+        if(CacheEntry.isNull(entry))
+        {
+            putLocal(keyPrefix, key, NULL_VALUE);
+            return null;
+        }
+
+        R r=decode(entry,type);
+
+        // 4.按概率决定是否在后台提前刷新，本次仍然返回当前数据（同一个key同时只刷新一次）
+        if (shouldRefreshEarly(entry)) {
+            if (rebuildExecutor.submit(key, () -> loadWithDelta(keyPrefix, key, id, dbFallback, time, unit))) {
+                stat.earlyRefreshes.increment();
+            }
+            return r;
+        }
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * XFetch：now - delta * beta * ln(rand) >= expireTime
+     */
+    private boolean shouldRefreshEarly(byte[] entry)
+    {
+        long expireMillis = CacheEntry.expireMillis(entry);
+        if (expireMillis == 0) {
+            return false;
+        }
+        long delta = CacheEntry.deltaMillis(entry);
+        double gap = -delta * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireMillis;
+    }
+
+    /**
+     * 查询数据库并记录耗时，写入带重建耗时的缓存
+     */
+    private <R,ID> R loadWithDelta(String keyPrefix, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit)
+    {
+        long begin = System.currentTimeMillis();
+        R r= dbFallback.apply(id);
+        long delta = System.currentTimeMillis() - begin;
+        if(r==null)
+        {
+            // 将空值写入redis
+            setNull(key);
+            putLocal(keyPrefix, key, NULL_VALUE);
+            return null;
+        }
+        setWithDelta(key, r, delta, time, unit);
+        putLocal(keyPrefix, key, r);
+        return r;
+    }
 
     /**
      * 缓存击穿（使用逻辑过期解决）
@@ -113,54 +860,118 @@ public class CacheClient {
     public <R,ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit)
     {
         String key = keyPrefix+id;
+        CacheStats stat = statsOf(keyPrefix);
+        hotKeyDetector.record(keyPrefix, key);
 
-        String json= stringRedisTemplate.opsForValue().get(key);
-
-        if(StrUtil.isBlank(json))
+        // 1.查询本地缓存（只缓存未过期的数据）
+        Object cached = getLocal(keyPrefix, key);
+        if(cached!=null)
         {
+            stat.l1Hits.increment();
+            return type.cast(cached);
+        }
+
+        byte[] entry= getEntry(key);
 
+        if(entry==null || CacheEntry.isNull(entry))
+        {
+            stat.misses.increment();
             return null;
         }
+        stat.l2Hits.increment();
 
-        // 4.
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r=JSONUtil.toBean((JSONObject) redisData.getData(),type);
-        LocalDateTime expireTime=redisData.getExpireTime();
+        // 4.解码数据，逻辑过期时间在头部
+        R r=decode(entry,type);
+        long expireMillis=CacheEntry.expireMillis(entry);
 
         // 5.
-        if(expireTime.isAfter(LocalDateTime.now()))
+        if(expireMillis > System.currentTimeMillis())
         {
             // 5.1
+            putLocal(keyPrefix, key, r);
             return r;
         }
         // 5.2
 
-        // 6.
-        // 6.1
+        // 6.提交重建任务，本节点同一个key只有一个任务，执行时再获取互斥锁协调各节点
         String lockKey=LOCK_SHOP_KEY+id;
-        boolean isLock=tryLock(lockKey);
-        //6.2
-        if(isLock)
-        {
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R r1= dbFallback.apply(id);
-                    // 写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
+        rebuildExecutor.submit(key, () -> {
+            // 6.1.获取互斥锁，失败说明其它节点正在重建
+            if (!tryLock(lockKey)) {
+                return;
+            }
+            try {
+                // 6.2.查询数据库，写入redis
+                R r1= dbFallback.apply(id);
+                this.setWithLogicalExpire(key,r1,time,unit);
+            } finally {
+                // 6.3.释放锁
+                unlock(lockKey);
+            }
+        });
 
         return r;
     }
 
+    /**
+     * 开启了本地缓存的前缀，以及允许热点key放入本地缓存的前缀下探测到的热点key，使用本地缓存
+     */
+    private boolean useLocal(String keyPrefix, String key)
+    {
+        return localKeyPrefixes.contains(keyPrefix)
+                || (hotKeyLocalPrefixes.contains(keyPrefix) && hotKeyDetector.isHot(key));
+    }
+
+    private Object getLocal(String keyPrefix, String key)
+    {
+        return useLocal(keyPrefix, key) ? localCache.getIfPresent(key) : null;
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value)
+    {
+        if (useLocal(keyPrefix, key)) {
+            localCache.put(key, value);
+        }
+    }
+
+    private CacheStats statsOf(String keyPrefix)
+    {
+        return cacheStats.computeIfAbsent(keyPrefix, k -> new CacheStats());
+    }
+
+    /**
+     * 某个key前缀的命中统计：L1命中、L2命中、都未命中
+     */
+    private static class CacheStats {
+        private final LongAdder l1Hits = new LongAdder();
+        private final LongAdder l2Hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder bloomRejected = new LongAdder();
+        private final LongAdder earlyRefreshes = new LongAdder();
+
+        Map<String, Object> toMap() {
+            long l1 = l1Hits.sum();
+            long l2 = l2Hits.sum();
+            long miss = misses.sum();
+            long total = l1 + l2 + miss;
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("l1Hits", l1);
+            map.put("l2Hits", l2);
+            map.put("misses", miss);
+            // 未命中时合并到其它线程的加载、没有查询数据库的次数
+            map.put("coalesced", coalesced.sum());
+            // 布隆过滤器拦截、没有访问Redis和数据库的次数
+            map.put("bloomRejected", bloomRejected.sum());
+            // 概率提前刷新触发的次数
+            map.put("earlyRefreshes", earlyRefreshes.sum());
+            map.put("l1HitRatio", total == 0 ? 0 : (double) l1 / total);
+            // L2命中率：L1未命中的请求中，Redis命中的比例
+            map.put("l2HitRatio", l2 + miss == 0 ? 0 : (double) l2 / (l2 + miss));
+            return map;
+        }
+    }
+
     /**
      * 创建互斥锁
      * @param key
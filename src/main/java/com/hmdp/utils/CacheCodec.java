@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器，CacheClient写入Redis前编码，读取后解码
+ * 编码结果只包含数据本身，过期时间等信息由 {@link CacheEntry} 的固定头部保存
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码器的唯一标识，写在头部，读取时据此选择解码器
+     */
+    byte id();
+
+    /**
+     * 配置中使用的名称，例如 json、smile
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    /**
+     * 解码bytes中 [offset, offset + length) 的部分
+     */
+    <R> R decode(byte[] bytes, int offset, int length, Class<R> type);
+}
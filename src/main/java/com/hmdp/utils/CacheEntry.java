@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Redis中缓存值的格式：固定14字节头部 + 编码后的数据
+ * <pre>
+ * | magic(1) | codecId(1) | expireMillis(8) | deltaMillis(4) | data |
+ * </pre>
+ * expireMillis为逻辑过期时间（0表示没有），deltaMillis为重建耗时（概率提前刷新使用），
+ * 判断是否过期只需要读取头部，不需要解码数据；长度为0表示数据不存在（防止缓存穿透的空值）
+ */
+public final class CacheEntry {
+
+    public static final byte MAGIC = (byte) 0xCE;
+
+    public static final int HEADER_LENGTH = 14;
+
+    /**
+     * 空值
+     */
+    public static final byte[] NULL_ENTRY = new byte[0];
+
+    private CacheEntry() {
+    }
+
+    public static byte[] encode(CacheCodec codec, Object value, long expireMillis, long deltaMillis)
+    {
+        byte[] data = codec.encode(value);
+        return ByteBuffer.allocate(HEADER_LENGTH + data.length)
+                .put(MAGIC)
+                .put(codec.id())
+                .putLong(expireMillis)
+                .putInt((int) Math.min(deltaMillis, Integer.MAX_VALUE))
+                .put(data)
+                .array();
+    }
+
+    /**
+     * 是否是CacheEntry格式（旧版本写入的JSON字符串返回false）
+     */
+    public static boolean isEntry(byte[] entry)
+    {
+        return entry.length == 0 || (entry.length >= HEADER_LENGTH && entry[0] == MAGIC);
+    }
+
+    public static boolean isNull(byte[] entry)
+    {
+        return entry.length == 0;
+    }
+
+    public static byte codecId(byte[] entry)
+    {
+        return entry[1];
+    }
+
+    public static long expireMillis(byte[] entry)
+    {
+        return ByteBuffer.wrap(entry, 2, 8).getLong();
+    }
+
+    public static long deltaMillis(byte[] entry)
+    {
+        return ByteBuffer.wrap(entry, 10, 4).getInt();
+    }
+
+    public static <R> R decode(CacheCodec codec, byte[] entry, Class<R> type)
+    {
+        return codec.decode(entry, HEADER_LENGTH, entry.length - HEADER_LENGTH, type);
+    }
+}
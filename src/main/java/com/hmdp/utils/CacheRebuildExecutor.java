@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建线程池，所有后台重建缓存的任务共用
+ * 队列有界，同一个key同时只有一个重建任务（排队或执行中），队列满时丢弃新任务，调用方继续返回旧数据
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    /**
+     * 关闭时等待已提交任务执行完的时间（秒）
+     */
+    @Value("${hmdp.cache.rebuild.shutdown-timeout-seconds:10}")
+    private long shutdownTimeoutSeconds;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 排队或执行中的key
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final LongAccumulator maxLatencyMillis = new LongAccumulator(Math::max, 0);
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，同一个key已经有任务时不再提交
+     * @param task 重建逻辑
+     * @return true代表已提交，false代表重复或者队列已满被丢弃
+     */
+    public boolean submit(String key, Runnable task)
+    {
+        if (!pendingKeys.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            // 队列满了或者正在关闭，丢弃任务，下次读取时会再次触发
+            pendingKeys.remove(key);
+            dropped.increment();
+            log.warn("缓存重建队列已满，丢弃重建任务，key={}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task)
+    {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            succeeded.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("缓存重建失败，key={}", key, e);
+        } finally {
+            long latency = System.currentTimeMillis() - begin;
+            totalLatencyMillis.add(latency);
+            maxLatencyMillis.accumulate(latency);
+            pendingKeys.remove(key);
+        }
+    }
+
+    /**
+     * 停止接收新任务，等待已提交的任务执行完
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("缓存重建任务在{}秒内没有执行完，强制关闭，剩余{}个", shutdownTimeoutSeconds, executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 队列深度、重建耗时、失败次数等
+     */
+    public Map<String, Object> stats()
+    {
+        long completed = succeeded.sum() + failed.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("threads", threads);
+        map.put("activeThreads", executor.getActiveCount());
+        map.put("queueDepth", executor.getQueue().size());
+        map.put("queueCapacity", queueCapacity);
+        map.put("pendingKeys", pendingKeys.size());
+        map.put("submitted", submitted.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("dropped", dropped.sum());
+        map.put("succeeded", succeeded.sum());
+        map.put("failed", failed.sum());
+        map.put("avgLatencyMillis", completed == 0 ? 0 : (double) totalLatencyMillis.sum() / completed);
+        map.put("maxLatencyMillis", maxLatencyMillis.get());
+        return map;
+    }
+}
@@ -0,0 +1,401 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Range;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热缓存：店铺缓存、店铺坐标（shop:geo:*）、店铺类型列表、秒杀库存
+ * 按主键游标分页读取数据库，每页用管道批量写入Redis；同时执行的任务数受 hmdp.warmup.concurrency 限制，保护数据库。
+ * ApplicationRunner执行完之前Spring Boot不会发布ReadinessState.ACCEPTING_TRAFFIC，预热完成前实例不会被判定为就绪
+ */
+@Slf4j
+@Component
+public class CacheWarmupRunner implements ApplicationRunner {
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每页读取的条数
+     */
+    @Value("${hmdp.warmup.page-size:500}")
+    private int pageSize;
+
+    /**
+     * 同时执行的预热任务数
+     */
+    @Value("${hmdp.warmup.concurrency:2}")
+    private int concurrency;
+
+    /**
+     * 超过这个时间仍未完成则放弃，实例照常就绪（缓存未命中时会回源数据库）
+     */
+    @Value("${hmdp.warmup.timeout-seconds:300}")
+    private long timeoutSeconds;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Map<String, Progress> progresses = new LinkedHashMap<>();
+
+    private volatile boolean ready;
+
+    public CacheWarmupRunner() {
+        progresses.put("shop", new Progress());
+        progresses.put("shopType", new Progress());
+        progresses.put("seckillStock", new Progress());
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                r -> new Thread(r, "cache-warmup-" + index.incrementAndGet()));
+        executor.submit(() -> warm("shop", this::warmShops));
+        executor.submit(() -> warm("shopType", this::warmShopTypes));
+        executor.submit(() -> warm("seckillStock", this::warmSeckillStock));
+        executor.shutdown();
+        if (!executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("缓存预热{}秒内没有完成，放弃预热", timeoutSeconds);
+            executor.shutdownNow();
+        }
+        ready = true;
+        log.info("缓存预热结束，耗时{}ms，{}", System.currentTimeMillis() - begin, progress());
+    }
+
+    private void warm(String name, Runnable task)
+    {
+        Progress progress = progresses.get(name);
+        progress.status = "RUNNING";
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            progress.status = "DONE";
+        } catch (Exception e) {
+            progress.status = "FAILED";
+            log.error("缓存预热失败，{}", name, e);
+        } finally {
+            progress.elapsedMillis = System.currentTimeMillis() - begin;
+        }
+    }
+
+    /**
+     * 店铺缓存 cache:shop:{id} 和店铺坐标 shop:geo:{typeId}
+     */
+    private void warmShops()
+    {
+        Progress progress = progresses.get("shop");
+        long lastId = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            // 1.按id游标分页查询
+            List<Shop> shops = shopService.query()
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + pageSize)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            // 2.店铺缓存，管道批量写入
+            Map<String, Shop> values = new HashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setBatch(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            // 3.店铺坐标 GEOADD shop:geo:{typeId} x y id
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : shops) {
+                    if (shop.getX() != null && shop.getY() != null) {
+                        connection.geoAdd(bytes(SHOP_GEO_KEY + shop.getTypeId()),
+                                new Point(shop.getX(), shop.getY()), bytes(shop.getId().toString()));
+                    }
+                }
+                return null;
+            });
+            progress.pages.increment();
+            progress.rows.add(shops.size());
+            log.debug("店铺缓存预热中，已完成{}条", progress.rows.sum());
+            lastId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < pageSize) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 店铺类型列表 cache:shopType:list
+     */
+    private void warmShopTypes()
+    {
+        // 缓存不存在时查询数据库并写入
+        shopTypeService.queryTypeList();
+        progresses.get("shopType").rows.increment();
+    }
+
+    /**
+     * 未结束的秒杀券库存 seckill:stock:{id}（分片时 seckill:stock:{id}:{0..K-1}）和已下单用户 seckill:order:{id}
+     * Redis中的库存先于数据库扣减，数据库库存要等stream.orders中的订单消费完才准确，所以：
+     * 1.只补写不存在的key（MSETNX），不会覆盖正在秒杀的库存；
+     * 2.stream.orders或死信队列中还有订单的券跳过，等订单落库后由VoucherServiceImpl或下次启动补写；
+     * 3.分片布局按当前的 hmdp.seckill.stock-shards 计算，Redis中已有另一种布局的key时跳过，
+     *   修改分片数后需要先迁移或删除旧key，否则这些券不会被预热
+     * 库存key缺失时秒杀脚本不会下单，队列中的订单只会减少，因此先扫描队列、再读数据库
+     */
+    private void warmSeckillStock()
+    {
+        Progress progress = progresses.get("seckillStock");
+        //1.队列中还有订单的券
+        Set<Long> backlog = vouchersInStream(SECKILL_ORDER_STREAM_KEY);
+        backlog.addAll(vouchersInStream(SECKILL_ORDER_DLQ_KEY));
+        if (!backlog.isEmpty()) {
+            log.warn("秒杀券{}还有未落库的订单，跳过库存预热", backlog);
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long lastId = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", lastId)
+                    .gt("end_time", now)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + pageSize)
+                    .list();
+            if (vouchers.isEmpty()) {
+                break;
+            }
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            boolean lastPage = vouchers.size() < pageSize;
+            //2.去掉有积压订单、分片布局不一致的券
+            List<SeckillVoucher> candidates = vouchers.stream()
+                    .filter(voucher -> !backlog.contains(voucher.getVoucherId()))
+                    .collect(Collectors.toList());
+            List<Object> otherLayout = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (SeckillVoucher voucher : candidates) {
+                    connection.exists(bytes(otherLayoutKey(voucher)));
+                }
+                return null;
+            });
+            List<SeckillVoucher> warmable = new ArrayList<>(candidates.size());
+            for (int i = 0; i < candidates.size(); i++) {
+                if (Boolean.TRUE.equals(otherLayout.get(i))) {
+                    log.warn("秒杀券{}的库存分片数与当前配置{}不一致，跳过库存预热", candidates.get(i).getVoucherId(), stockShards);
+                } else {
+                    warmable.add(candidates.get(i));
+                }
+            }
+            //3.MSETNX补写库存，返回true表示库存key原本不存在
+            List<Object> written = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (SeckillVoucher voucher : warmable) {
+                    connection.mSetNX(stockKeys(voucher));
+                }
+                return null;
+            });
+            //4.补写了库存的券，从订单表恢复已下单用户，避免重复下单
+            for (int i = 0; i < warmable.size(); i++) {
+                if (Boolean.TRUE.equals(written.get(i))) {
+                    restoreOrderedUsers(warmable.get(i).getVoucherId());
+                }
+            }
+            progress.pages.increment();
+            progress.rows.add(warmable.size());
+            progress.skipped.add(vouchers.size() - warmable.size());
+            if (lastPage) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 分页读取stream中的全部消息（包括未投递、未确认和已确认但尚未清理的），返回其中的券id
+     */
+    private Set<Long> vouchersInStream(String streamKey)
+    {
+        Set<Long> voucherIds = new HashSet<>();
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        String lastId = "-";
+        while (!Thread.currentThread().isInterrupted()) {
+            // 从上一页最后一条开始（包含），跳过这一条
+            Range<String> range = "-".equals(lastId) ? Range.unbounded()
+                    : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+            List<MapRecord<String, Object, Object>> records = ops.range(streamKey, range,
+                    RedisZSetCommands.Limit.limit().count(pageSize + 1));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            int read = 0;
+            for (MapRecord<String, Object, Object> record : records) {
+                if (record.getId().getValue().equals(lastId)) {
+                    continue;
+                }
+                Object voucherId = record.getValue().get("voucherId");
+                if (voucherId != null) {
+                    voucherIds.add(Long.valueOf(voucherId.toString()));
+                }
+                read++;
+            }
+            lastId = records.get(records.size() - 1).getId().getValue();
+            if (read == 0 || records.size() <= pageSize) {
+                break;
+            }
+        }
+        return voucherIds;
+    }
+
+    /**
+     * 按订单id游标分页读取这张券的下单用户，SADD seckill:order:{id}
+     */
+    private void restoreOrderedUsers(Long voucherId)
+    {
+        String key = SECKILL_ORDER_KEY + voucherId;
+        long lastId = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + pageSize)
+                    .list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.opsForSet().add(key, orders.stream()
+                    .map(order -> order.getUserId().toString())
+                    .toArray(String[]::new));
+            lastId = orders.get(orders.size() - 1).getId();
+            if (orders.size() < pageSize) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 与当前分片配置不同的那种布局的key：分片时为不分片的key，不分片时为第0个分片
+     */
+    private String otherLayoutKey(SeckillVoucher voucher)
+    {
+        return stockShards <= 1 ? SECKILL_STOCK_KEY + voucher.getVoucherId() + ":0"
+                : SECKILL_STOCK_KEY + voucher.getVoucherId();
+    }
+
+    /**
+     * 与VoucherServiceImpl保存库存的方式一致：库存平均拆到K个分片中，余数分给前面的分片
+     */
+    private Map<byte[], byte[]> stockKeys(SeckillVoucher voucher)
+    {
+        Map<byte[], byte[]> stocks = new HashMap<>();
+        int stock = voucher.getStock();
+        if (stockShards <= 1) {
+            stocks.put(bytes(SECKILL_STOCK_KEY + voucher.getVoucherId()), bytes(String.valueOf(stock)));
+            return stocks;
+        }
+        for (int i = 0; i < stockShards; i++) {
+            int shardStock = stock / stockShards + (i < stock % stockShards ? 1 : 0);
+            stocks.put(bytes(SECKILL_STOCK_KEY + voucher.getVoucherId() + ":" + i), bytes(String.valueOf(shardStock)));
+        }
+        return stocks;
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 预热是否已结束（成功、失败或超时）
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * 各预热任务的状态、已写入条数、耗时
+     */
+    public Map<String, Object> progress()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", ready);
+        progresses.forEach((name, progress) -> map.put(name, progress.toMap()));
+        return map;
+    }
+
+    private static class Progress {
+        private volatile String status = "PENDING";
+        private volatile long elapsedMillis;
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        /**
+         * 没有预热的条数（秒杀券有积压订单或分片布局不一致）
+         */
+        private final LongAdder skipped = new LongAdder();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", status);
+            map.put("pages", pages.sum());
+            map.put("rows", rows.sum());
+            map.put("skipped", skipped.sum());
+            map.put("elapsedMillis", elapsedMillis);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测：每个key前缀一个Count-Min Sketch估算访问次数，再用一个容量为K的表保存访问最多的key；
+ * 估算次数超过阈值的key标记为热点，CacheClient会把热点key放入本地缓存（即使该前缀没有开启L1）。
+ * 计数定期减半，不再被访问的key会逐渐退出热点
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    @Value("${hmdp.cache.hotkey.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Count-Min Sketch的行数（哈希函数个数）和每行的计数器个数
+     */
+    @Value("${hmdp.cache.hotkey.depth:4}")
+    private int depth;
+
+    @Value("${hmdp.cache.hotkey.width:4096}")
+    private int width;
+
+    /**
+     * 每个前缀保留访问最多的K个key
+     */
+    @Value("${hmdp.cache.hotkey.top-k:20}")
+    private int topK;
+
+    /**
+     * 一个衰减周期内估算访问次数达到这个值的key判定为热点
+     */
+    @Value("${hmdp.cache.hotkey.threshold:1000}")
+    private long threshold;
+
+    /**
+     * 计数减半的间隔（秒）
+     */
+    @Value("${hmdp.cache.hotkey.decay-interval-seconds:10}")
+    private long decayIntervalSeconds;
+
+    private final Map<String, Sketch> sketches = new ConcurrentHashMap<>();
+
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-hotkey-decay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            decayExecutor.scheduleWithFixedDelay(this::decay, decayIntervalSeconds, decayIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        decayExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问
+     * @param keyPrefix 缓存key前缀
+     * @param key 缓存key
+     */
+    public void record(String keyPrefix, String key)
+    {
+        if (!enabled) {
+            return;
+        }
+        Sketch sketch = sketches.computeIfAbsent(keyPrefix, k -> new Sketch());
+        long estimate = sketch.add(key);
+        sketch.offer(key, estimate);
+        if (estimate >= threshold && hotKeys.add(key)) {
+            log.info("发现热点key：{}，估算访问次数{}", key, estimate);
+        }
+    }
+
+    public boolean isHot(String key)
+    {
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 各前缀访问最多的K个key，按估算次数从大到小排序
+     */
+    public Map<String, List<Map<String, Object>>> topKeys()
+    {
+        Map<String, List<Map<String, Object>>> result = new LinkedHashMap<>();
+        sketches.forEach((prefix, sketch) -> {
+            List<Map<String, Object>> keys = new ArrayList<>();
+            sketch.snapshot().entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .forEach(entry -> {
+                        Map<String, Object> item = new LinkedHashMap<>();
+                        item.put("key", entry.getKey());
+                        item.put("count", entry.getValue());
+                        item.put("hot", hotKeys.contains(entry.getKey()));
+                        keys.add(item);
+                    });
+            result.put(prefix, keys);
+        });
+        return result;
+    }
+
+    /**
+     * 所有计数减半，重新计算热点key
+     */
+    private void decay()
+    {
+        Set<String> stillHot = new HashSet<>();
+        sketches.values().forEach(sketch -> {
+            sketch.decay();
+            sketch.snapshot().forEach((key, count) -> {
+                if (count >= threshold) {
+                    stillHot.add(key);
+                }
+            });
+        });
+        hotKeys.removeIf(key -> {
+            if (stillHot.contains(key)) {
+                return false;
+            }
+            log.info("热点key降级：{}", key);
+            return true;
+        });
+    }
+
+    /**
+     * Count-Min Sketch + top-K
+     */
+    private class Sketch {
+        private final AtomicLongArray counters = new AtomicLongArray(depth * width);
+
+        /**
+         * 访问最多的K个key及其估算次数，K很小，直接线性查找最小值
+         */
+        private final Map<String, Long> top = new HashMap<>();
+
+        /**
+         * top已满时的最小次数，估算次数不超过它的key不需要加锁更新
+         */
+        private volatile long topMin;
+
+        long add(String key) {
+            int hash1 = key.hashCode();
+            int hash2 = mix(hash1);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                int index = row * width + Math.floorMod(hash1 + row * hash2, width);
+                estimate = Math.min(estimate, counters.incrementAndGet(index));
+            }
+            return estimate;
+        }
+
+        void offer(String key, long estimate) {
+            if (estimate <= topMin) {
+                return;
+            }
+            synchronized (this) {
+                top.put(key, estimate);
+                if (top.size() > topK) {
+                    String minKey = null;
+                    for (Map.Entry<String, Long> entry : top.entrySet()) {
+                        if (minKey == null || entry.getValue() < top.get(minKey)) {
+                            minKey = entry.getKey();
+                        }
+                    }
+                    top.remove(minKey);
+                }
+                topMin = top.size() < topK ? 0 : top.values().stream().min(Long::compare).orElse(0L);
+            }
+        }
+
+        void decay() {
+            for (int i = 0; i < counters.length(); i++) {
+                long value;
+                do {
+                    value = counters.get(i);
+                } while (value != 0 && !counters.compareAndSet(i, value, value >> 1));
+            }
+            synchronized (this) {
+                top.replaceAll((key, count) -> count >> 1);
+                top.values().removeIf(count -> count == 0);
+                topMin = top.size() < topK ? 0 : top.values().stream().min(Long::compare).orElse(0L);
+            }
+        }
+
+        synchronized Map<String, Long> snapshot() {
+            return new HashMap<>(top);
+        }
+
+        private int mix(int h) {
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            return (h ^ (h >>> 16)) | 1;
+        }
+    }
+}
@@ -10,13 +10,32 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+    public static final String CACHE_BLOOM_ADD_CHANNEL = "cache:bloom:add";
+    public static final String LOCK_CACHE_KEY = "lock:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_RATE_KEY = "seckill:rate:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_STREAM_KEY = "stream.shop.geo";
+    public static final String LOCK_SHOP_GEO_RECONCILE_KEY = "lock:shop:geo:reconcile";
+    public static final String SHOP_SEARCH_UPDATE_CHANNEL = "shop:search:update";
+    public static final String SHOP_SUGGEST_UPDATE_CHANNEL = "shop:suggest:update";
+    public static final String SHOP_NEARBY_SNAPSHOT_KEY = "shop:nearby:snapshot:";
+    public static final Long SHOP_NEARBY_SNAPSHOT_TTL = 5L;
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String ID_WORKER_KEY = "id:worker:";
 }
@@ -1,17 +1,31 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author 86152
  * @version 1.0
  * Create by 2024/2/6 16:37
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -23,13 +37,75 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    /**
+     * 一天的秒数
+     */
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 号段用掉这个比例后，异步预取下一个号段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
 
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 号段大小：每次INCRBY租用的序列号个数，小于等于1表示每个ID都INCR一次
+     */
+    @Value("${hmdp.id.segment-size:0}")
+    private int segmentSize;
+
+    /**
+     * 使用雪花算法生成ID的业务前缀，这些前缀生成ID时不访问Redis
+     */
+    @Value("${hmdp.id.snowflake-prefixes:}")
+    private String[] snowflakePrefixes;
+
+    private final Set<String> snowflakeKeyPrefixes = new HashSet<>();
+
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    /**
+     * 每个业务前缀一个号段缓冲
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    //预取号段的线程
+    private final ExecutorService segmentPrefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        for (String prefix : snowflakePrefixes) {
+            if (StrUtil.isNotBlank(prefix)) {
+                snowflakeKeyPrefixes.add(prefix.trim());
+            }
+        }
+        if (!snowflakeKeyPrefixes.isEmpty()) {
+            // 只在启动时访问Redis租用workerId
+            snowflakeIdWorker = new SnowflakeIdWorker(stringRedisTemplate, this);
+            snowflakeIdWorker.start();
+        }
+    }
+
+    /**
+     * 该业务前缀是否使用雪花算法（生成ID不需要访问Redis）
+     * @param keyPrefix 业务前缀
+     */
+    public boolean isSnowflake(String keyPrefix)
+    {
+        return snowflakeKeyPrefixes.contains(keyPrefix);
+    }
+
     /**
      * 生成全局唯一ID
      * @param keyPrefix 业务前缀
@@ -37,23 +113,152 @@ public class RedisIdWorker {
      */
     public long nextId(String keyPrefix)
     {
+        // 0.雪花算法
+        if (isSnowflake(keyPrefix)) {
+            return snowflakeIdWorker.nextId();
+        }
         // 1.生成时间戳
         LocalDateTime now=LocalDateTime.now();
-        long nowSecond=now.toEpochSecond(ZoneOffset.UTC);
-        long timetamp=nowSecond-BEGIN_TIMESTAMP;
+        long timetamp=timestamp(now);
 
         // 2.生成序列号
-        // 2.1.获取当前日期，精确到天
-        String date=now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-
-        // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if (segmentSize > 1) {
+            // 2.1.号段模式：从内存中的号段取
+            long day = Math.floorDiv(timetamp + BEGIN_TIMESTAMP, SECONDS_PER_DAY);
+            count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day, now);
+        } else {
+            // 2.2.自增长
+            count = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, now));
+        }
 
         // 3.拼接并返回
-        return timetamp<<COUNT_BITS | count;
+        return compose(timetamp, count);
+
+    }
+
+    /**
+     * ID的时间戳部分
+     * @param now 当前时间
+     * @return 距离开始时间戳的秒数
+     */
+    public long timestamp(LocalDateTime now)
+    {
+        return now.toEpochSecond(ZoneOffset.UTC)-BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号的自增key，按天区分 icr:{keyPrefix}:yyyy:MM:dd
+     * @param keyPrefix 业务前缀
+     * @param now 当前时间
+     * @return
+     */
+    public String sequenceKey(String keyPrefix, LocalDateTime now)
+    {
+        // 获取当前日期，精确到天
+        String date=now.format(DATE_FORMATTER);
+        return "icr:" + keyPrefix + ":" + date;
+    }
 
+    /**
+     * 拼接时间戳和序列号
+     */
+    public static long compose(long timestamp, long count)
+    {
+        return timestamp<<COUNT_BITS | count;
     }
 
+    @PreDestroy
+    private void destroy() {
+        segmentPrefetchExecutor.shutdownNow();
+        if (snowflakeIdWorker != null) {
+            snowflakeIdWorker.shutdown();
+        }
+    }
 
+    /**
+     * 号段：[start, end) 范围内的序列号，cursor无锁递增分配
+     */
+    private static class Segment {
+        private final long day;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long day, long start, long end) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = start + (long) ((end - start) * PREFETCH_RATIO);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 某个业务前缀的号段缓冲：当前号段 + 预取中的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long day, LocalDateTime now) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count < segment.end) {
+                        // 恰好用到预取点的那个线程负责触发预取
+                        if (count == segment.prefetchAt) {
+                            prefetch(now);
+                        }
+                        return count;
+                    }
+                }
+                // 号段用完或者跨天了，切换号段
+                switchSegment(segment, day, now);
+            }
+        }
+
+        private synchronized void prefetch(LocalDateTime now) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, now), segmentPrefetchExecutor);
+            }
+        }
+
+        private synchronized void switchSegment(Segment old, long day, LocalDateTime now) {
+            if (current != old) {
+                // 其它线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败，keyPrefix={}", keyPrefix, e);
+                }
+                next = null;
+            }
+            if (segment == null || segment.day != day) {
+                // 没有可用的预取号段（或者预取的是前一天的），同步租用
+                segment = lease(keyPrefix, now);
+            }
+            current = segment;
+        }
+    }
+
+    /**
+     * 租用一个号段 INCRBY icr:{keyPrefix}:{date} segmentSize
+     */
+    private Segment lease(String keyPrefix, LocalDateTime now)
+    {
+        long max = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, now), segmentSize);
+        long day = Math.floorDiv(timestamp(now) + BEGIN_TIMESTAMP, SECONDS_PER_DAY);
+        return new Segment(day, max - segmentSize + 1, max + 1);
+    }
 
 }
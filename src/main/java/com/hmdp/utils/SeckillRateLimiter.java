@@ -0,0 +1,241 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillLimitProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RATE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+
+/**
+ * 秒杀请求的准入控制
+ * 1.本机按优惠券限流（无锁令牌桶）
+ * 2.正在执行秒杀脚本的请求数超过剩余库存的若干倍后直接拒绝；剩余库存按脚本结果更新，
+ *   重复下单等没有扣减库存的请求执行完后不再占用名额
+ * 3.可选的基于Redis的全局限流
+ */
+@Component
+public class SeckillRateLimiter implements MessageListener {
+
+    /**
+     * 准入结果
+     */
+    public enum Admission {
+        /** 放行 */
+        ADMITTED,
+        /** 超过速率限制 */
+        THROTTLED,
+        /** 请求数已远超剩余库存 */
+        SHED
+    }
+
+    private static final DefaultRedisScript<Long> RATE_SCRIPT;
+    //初始化脚本
+    static {
+        RATE_SCRIPT=new DefaultRedisScript<>();
+        RATE_SCRIPT.setLocation(new ClassPathResource("seckill_rate.lua"));
+        RATE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillLimitProperties properties;
+
+    private final Map<Long, VoucherBucket> buckets = new ConcurrentHashMap<>();
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate, SeckillLimitProperties properties,
+                              RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+        // 补库存后重新按新库存计算放行上限
+        container.addMessageListener(this, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 判断秒杀请求是否可以放行，放行后无论成功与否都要调用 {@link #complete}
+     * @param voucherId 优惠券id
+     * @param stockLoader 第一次访问该券、补库存后查询剩余库存
+     * @return 准入结果
+     */
+    public Admission tryAcquire(Long voucherId, Function<Long, Integer> stockLoader)
+    {
+        // 查询数据库放在computeIfAbsent外面，不阻塞同一个桶位上的其它券
+        VoucherBucket bucket = buckets.get(voucherId);
+        if (bucket == null) {
+            Integer stock = stockLoader.apply(voucherId);
+            bucket = buckets.computeIfAbsent(voucherId, id -> new VoucherBucket(id, stock));
+        } else if (bucket.stale) {
+            // 补库存后重新查询剩余库存
+            bucket.stale = false;
+            bucket.resetStock(stockLoader.apply(voucherId));
+        }
+        // 1.正在抢的请求已经远超剩余库存，后面的请求不可能抢到，直接拒绝
+        if (bucket.isOverLimit()) {
+            bucket.shed.increment();
+            return Admission.SHED;
+        }
+        // 2.本机令牌桶
+        if (!bucket.tryTake()) {
+            bucket.throttled.increment();
+            return Admission.THROTTLED;
+        }
+        // 3.全局限流
+        int globalRate = properties.globalRateOf(voucherId);
+        if (globalRate > 0 && !tryAcquireGlobal(voucherId, globalRate)) {
+            bucket.throttled.increment();
+            return Admission.THROTTLED;
+        }
+        bucket.admitted.increment();
+        bucket.inFlight.incrementAndGet();
+        return Admission.ADMITTED;
+    }
+
+    /**
+     * 放行的请求执行完秒杀脚本后调用
+     * @param voucherId 优惠券id
+     * @param result 脚本结果：0 下单成功，1 库存不足，2 重复下单，其它值代表执行失败
+     */
+    public void complete(Long voucherId, int result)
+    {
+        VoucherBucket bucket = buckets.get(voucherId);
+        if (bucket == null) {
+            return;
+        }
+        if (bucket.inFlight.decrementAndGet() < 0) {
+            bucket.inFlight.set(0);
+        }
+        if (result == 0) {
+            bucket.remainingStock.updateAndGet(stock -> stock > 0 ? stock - 1 : stock);
+        } else if (result == 1) {
+            bucket.remainingStock.updateAndGet(stock -> stock < 0 ? stock : 0);
+        }
+    }
+
+    private boolean tryAcquireGlobal(Long voucherId, int globalRate)
+    {
+        long second = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        Long result = stringRedisTemplate.execute(
+                RATE_SCRIPT,
+                Collections.singletonList(SECKILL_RATE_KEY + voucherId + ":" + second),
+                String.valueOf(globalRate)
+        );
+        return result != null && result == 1;
+    }
+
+    /**
+     * 各优惠券的限制与统计
+     */
+    public Map<Long, Map<String, Object>> stats()
+    {
+        Map<Long, Map<String, Object>> stats = new LinkedHashMap<>();
+        buckets.forEach((voucherId, bucket) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("rate", properties.rateOf(voucherId));
+            item.put("burst", properties.burstOf(voucherId));
+            item.put("globalRate", properties.globalRateOf(voucherId));
+            item.put("stockMultiple", bucket.multiple);
+            item.put("remainingStock", bucket.remainingStock.get());
+            item.put("inFlight", bucket.inFlight.get());
+            item.put("admitted", bucket.admitted.sum());
+            item.put("throttled", bucket.throttled.sum());
+            item.put("shed", bucket.shed.sum());
+            stats.put(voucherId, item);
+        });
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 保留正在执行的请求数，下一个请求重新查询剩余库存
+        VoucherBucket bucket = buckets.get(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+        if (bucket != null) {
+            bucket.stale = true;
+        }
+    }
+
+    private class VoucherBucket {
+        /**
+         * 两次放行之间的间隔（纳秒），以及允许提前透支的时间（突发容量）
+         */
+        private final long intervalNanos;
+        private final long burstNanos;
+        /**
+         * 下一个令牌的理论到达时间（GCRA），CAS更新，无需加锁
+         */
+        private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+        /**
+         * 正在执行脚本的请求数最多是剩余库存的几倍，0表示不限制
+         */
+        private final int multiple;
+        /**
+         * 剩余库存：创建、补库存时查询数据库，之后按脚本结果扣减，-1表示未知（不限制）
+         */
+        private final AtomicLong remainingStock = new AtomicLong(-1);
+        /**
+         * 已放行、还没有执行完脚本的请求数
+         */
+        private final AtomicLong inFlight = new AtomicLong();
+        /**
+         * 收到补库存通知后置为true
+         */
+        private volatile boolean stale;
+
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+
+        VoucherBucket(Long voucherId, Integer stock) {
+            int rate = properties.rateOf(voucherId);
+            this.intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            this.burstNanos = intervalNanos * Math.max(1, properties.burstOf(voucherId));
+            this.multiple = properties.stockMultipleOf(voucherId);
+            resetStock(stock);
+        }
+
+        void resetStock(Integer stock) {
+            remainingStock.set(stock == null ? -1 : stock);
+        }
+
+        boolean isOverLimit() {
+            long stock = remainingStock.get();
+            if (multiple <= 0 || stock < 0) {
+                return false;
+            }
+            return inFlight.get() >= Math.max(stock, 1) * multiple;
+        }
+
+        boolean tryTake() {
+            if (intervalNanos == 0) {
+                return true;
+            }
+            while (true) {
+                long now = System.nanoTime();
+                long next = nextFreeNanos.get();
+                long newNext = Math.max(next, now) + intervalNanos;
+                if (newNext - now > burstNanos) {
+                    // 桶里没有令牌了
+                    return false;
+                }
+                if (nextFreeNanos.compareAndSet(next, newNext)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本机的秒杀券售罄标记
+ * 脚本第一次返回库存不足后标记售罄，之后的请求直接在本地拒绝，不再访问Redis；
+ * 售罄、补库存通过Redis发布订阅通知到所有节点；标记有过期时间，漏收补库存通知的节点过期后会重新访问Redis
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutFlags implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 售罄标记的有效期（秒），过期后下一个请求重新执行脚本，仍然售罄会再次标记
+     */
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:60}")
+    private long soldOutTtlSeconds;
+
+    /**
+     * 优惠券id -> 售罄标记的过期时间
+     */
+    private final Map<Long, Long> soldOutVouchers = new ConcurrentHashMap<>();
+
+    /**
+     * 被本地拦截的请求数
+     */
+    private final LongAdder shortCircuits = new LongAdder();
+
+    public SeckillSoldOutFlags(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, Arrays.asList(
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL)
+        ));
+    }
+
+    /**
+     * 判断优惠券是否已经售罄
+     * @param voucherId 优惠券id
+     * @return true代表已售罄，可以直接拒绝
+     */
+    public boolean isSoldOut(Long voucherId)
+    {
+        Long expireMillis = soldOutVouchers.get(voucherId);
+        if (expireMillis == null) {
+            return false;
+        }
+        if (expireMillis <= System.currentTimeMillis()) {
+            soldOutVouchers.remove(voucherId, expireMillis);
+            return false;
+        }
+        shortCircuits.increment();
+        return true;
+    }
+
+    /**
+     * 标记售罄，并通知其它节点
+     */
+    public void markSoldOut(Long voucherId)
+    {
+        Long old = soldOutVouchers.put(voucherId, expireMillis());
+        if (old == null || old <= System.currentTimeMillis()) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 库存重新写入Redis后清除售罄标记，并通知其它节点；有事务时在提交后执行，
+     * 避免其它节点（以及限流器）在数据库提交前读到旧库存
+     */
+    public void markRestocked(Long voucherId)
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doMarkRestocked(voucherId);
+                }
+            });
+            return;
+        }
+        doMarkRestocked(voucherId);
+    }
+
+    private void doMarkRestocked(Long voucherId)
+    {
+        soldOutVouchers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    private long expireMillis()
+    {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(soldOutTtlSeconds);
+    }
+
+    public long getShortCircuits()
+    {
+        return shortCircuits.sum();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            soldOutVouchers.put(voucherId, expireMillis());
+        } else {
+            soldOutVouchers.remove(voucherId);
+        }
+        log.debug("收到秒杀券库存通知 channel={}, voucherId={}", channel, voucherId);
+    }
+}
@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 店铺坐标的内存索引（经纬度网格），Redis不支持GEOSEARCH（6.2以下）时用来查询附近的店铺
+ * 按店铺类型分别建立网格，查询时只计算圆形范围外接矩形覆盖的格子中的店铺
+ */
+@Component
+public class ShopGeoIndex {
+
+    /**
+     * 与Redis GEO计算距离使用的地球半径一致（米）
+     */
+    private static final double EARTH_RADIUS = 6372797.560856;
+
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+
+    /**
+     * 网格边长（度），0.01度约1.1公里
+     */
+    @Value("${hmdp.shop.geo-index.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    /**
+     * typeId -> 格子 -> 格子中的店铺，重建时整体替换
+     */
+    private volatile Map<Long, Map<Long, List<GeoPoint>>> grids;
+
+    /**
+     * 是否已经建立索引
+     */
+    public boolean isBuilt()
+    {
+        return grids != null;
+    }
+
+    /**
+     * 用全部店铺重建索引
+     */
+    public void rebuild(Collection<Shop> shops)
+    {
+        Map<Long, Map<Long, List<GeoPoint>>> newGrids = new HashMap<>();
+        for (Shop shop : shops) {
+            if (shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            newGrids.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                    .computeIfAbsent(cell(shop.getX(), shop.getY()), k -> new ArrayList<>())
+                    .add(new GeoPoint(shop.getId(), shop.getX(), shop.getY()));
+        }
+        grids = newGrids;
+    }
+
+    /**
+     * 查询圆形范围内的店铺，按距离从近到远排序
+     * @param typeId 店铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param radius 半径（米）
+     * @param limit 最多返回的条数
+     * @return 店铺id和距离
+     */
+    public List<GeoHit> search(Long typeId, double x, double y, double radius, int limit)
+    {
+        return searchAfter(typeId, x, y, radius, -1, null, limit);
+    }
+
+    /**
+     * 游标分页：查询排在（afterDistance, afterShopId）之后的店铺，按距离、店铺id排序
+     * 只计算与圆环 afterDistance ~ radius 相交的格子，越往后翻页跳过的格子越多
+     * @param afterDistance 上一页最后一个店铺的距离，小于0表示第一页
+     * @param afterShopId 上一页最后一个店铺的id，距离相同时按id排序
+     */
+    public List<GeoHit> searchAfter(Long typeId, double x, double y, double radius,
+                                    double afterDistance, Long afterShopId, int limit)
+    {
+        Map<Long, Map<Long, List<GeoPoint>>> current = grids;
+        Map<Long, List<GeoPoint>> grid = current == null ? null : current.get(typeId);
+        if (grid == null) {
+            return Collections.emptyList();
+        }
+        // 1.圆形范围的外接矩形
+        double dy = radius / METERS_PER_DEGREE;
+        double dx = radius / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(y)), 1e-6));
+        long minX = index(x - dx);
+        long maxX = index(x + dx);
+        long minY = index(y - dy);
+        long maxY = index(y + dy);
+
+        // 2.计算矩形覆盖的格子中每个店铺的距离
+        List<GeoHit> hits = new ArrayList<>();
+        for (long i = minX; i <= maxX; i++) {
+            for (long j = minY; j <= maxY; j++) {
+                List<GeoPoint> points = grid.get(key(i, j));
+                if (points == null) {
+                    continue;
+                }
+                // 2.1.格子中最远的点也在上一页之前，整个格子跳过
+                if (afterDistance >= 0 && farthest(x, y, i, j) < afterDistance) {
+                    continue;
+                }
+                for (GeoPoint point : points) {
+                    double distance = distance(x, y, point.x, point.y);
+                    if (distance <= radius && isAfter(distance, point.shopId, afterDistance, afterShopId)) {
+                        hits.add(new GeoHit(point.shopId, distance));
+                    }
+                }
+            }
+        }
+
+        // 3.按距离排序，取前limit条
+        hits.sort(Comparator.comparingDouble(GeoHit::getDistance).thenComparing(GeoHit::getShopId));
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    private static boolean isAfter(double distance, long shopId, double afterDistance, Long afterShopId)
+    {
+        if (afterDistance < 0 || distance > afterDistance) {
+            return true;
+        }
+        return distance == afterDistance && afterShopId != null && shopId > afterShopId;
+    }
+
+    /**
+     * 格子(i, j)的四个角中离(x, y)最远的距离
+     */
+    private double farthest(double x, double y, long i, long j)
+    {
+        double x1 = i * cellDegrees;
+        double y1 = j * cellDegrees;
+        double x2 = x1 + cellDegrees;
+        double y2 = y1 + cellDegrees;
+        return Math.max(Math.max(distance(x, y, x1, y1), distance(x, y, x1, y2)),
+                Math.max(distance(x, y, x2, y1), distance(x, y, x2, y2)));
+    }
+
+    /**
+     * 两个坐标之间的球面距离（米）
+     */
+    public static double distance(double x1, double y1, double x2, double y2)
+    {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private long cell(double x, double y)
+    {
+        return key(index(x), index(y));
+    }
+
+    private long index(double degrees)
+    {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long key(long i, long j)
+    {
+        return i << 32 | (j & 0xFFFFFFFFL);
+    }
+
+    @AllArgsConstructor
+    private static class GeoPoint {
+        private final long shopId;
+        private final double x;
+        private final double y;
+    }
+
+    /**
+     * 查询结果：店铺id和距离（米）
+     */
+    @Data
+    @AllArgsConstructor
+    public static class GeoHit {
+        private Long shopId;
+        private double distance;
+    }
+}
@@ -0,0 +1,571 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺坐标（shop:geo:{typeId}）的增量维护：
+ * 1.新增、修改店铺后写入变更事件 XADD stream.shop.geo * id {id} oldTypeId {typeId}
+ * 2.消费者按批读取事件，按店铺当前的数据库数据用管道批量 GEOADD / ZREM（事件只带id，重复消费、乱序都不会写错）
+ * 3.定时对账：按id游标分批比较数据库与Redis，只修复不一致的店铺，不做全量重新导入；
+ *   同时把内存网格索引（GEOSEARCH不可用时使用）重建为最新数据
+ * 每个实例使用自己的消费者名；无法解析的事件直接确认，处理失败超过 max-attempts 次的事件也确认后放弃，
+ * 这些事件以及已下线实例留在pending-list中的事件都由对账修复，对账后确认
+ */
+@Slf4j
+@Component
+public class ShopGeoIndexer {
+
+    private static final String GROUP_NAME = "g1";
+
+    /**
+     * 本实例的消费者名：主机名-进程号，多个实例不会共用一个pending-list
+     */
+    private final String consumerName = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+
+    /**
+     * 数据库坐标与Redis中的坐标相差超过这个距离（米）才修复，GEOADD保存的坐标有约0.6米的误差
+     */
+    private static final double POSITION_TOLERANCE = 1;
+
+    @Value("${hmdp.shop.geo-sync.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每次XREADGROUP最多读取的事件数，一批事件用一次管道写入
+     */
+    @Value("${hmdp.shop.geo-sync.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 对账时每批读取的店铺数
+     */
+    @Value("${hmdp.shop.geo-sync.reconcile-chunk-size:500}")
+    private int chunkSize;
+
+    /**
+     * 对账间隔（分钟）
+     */
+    @Value("${hmdp.shop.geo-sync.reconcile-interval-minutes:10}")
+    private long reconcileIntervalMinutes;
+
+    /**
+     * stream.shop.geo的近似最大长度，对账时裁剪；超出的未消费事件由对账修复
+     */
+    @Value("${hmdp.shop.geo-sync.stream-max-len:10000}")
+    private long streamMaxLen;
+
+    /**
+     * 一个事件最多处理的次数，超过后确认并放弃，由对账修复
+     */
+    @Value("${hmdp.shop.geo-sync.max-attempts:5}")
+    private int maxAttempts;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    private ExecutorService consumerExecutor;
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    private volatile boolean running = true;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder orphansAcked = new LongAdder();
+
+    /**
+     * 处理失败的事件id -> 失败次数，成功或者放弃后删除
+     */
+    private final Map<RecordId, Integer> attempts = new HashMap<>();
+    private final LongAdder reconcileRuns = new LongAdder();
+    private final LongAdder reconcileAdded = new LongAdder();
+    private final LongAdder reconcileRemoved = new LongAdder();
+    private volatile long lastReconcileMillis;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        createGroup();
+        consumerExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "shop-geo-consumer"));
+        consumerExecutor.submit(this::consume);
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "shop-geo-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile,
+                reconcileIntervalMinutes, reconcileIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (consumerExecutor != null) {
+            consumerExecutor.shutdown();
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * XGROUP CREATE stream.shop.geo g1 0 MKSTREAM，消费者组已存在时忽略
+     */
+    private void createGroup()
+    {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.streamCommands()
+                    .xGroupCreate(bytes(SHOP_GEO_STREAM_KEY), GROUP_NAME, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            if (!StrUtil.contains(e.getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 店铺新增、修改后调用；有事务时在提交后发送，避免消费者读到旧数据
+     * @param shopId 店铺id
+     * @param oldTypeId 修改前的店铺类型，新增时为null；类型变化时从旧类型的key中删除
+     */
+    public void publish(Long shopId, Long oldTypeId)
+    {
+        if (!enabled) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doPublish(shopId, oldTypeId);
+                }
+            });
+            return;
+        }
+        doPublish(shopId, oldTypeId);
+    }
+
+    private void doPublish(Long shopId, Long oldTypeId)
+    {
+        Map<String, String> event = new HashMap<>(4);
+        event.put("id", shopId.toString());
+        if (oldTypeId != null) {
+            event.put("oldTypeId", oldTypeId.toString());
+        }
+        try {
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SHOP_GEO_STREAM_KEY).ofMap(event));
+            published.increment();
+        } catch (Exception e) {
+            // 事件丢失由定时对账修复
+            log.error("写入店铺坐标变更事件失败，shopId={}", shopId, e);
+        }
+    }
+
+    /**
+     * 先处理本消费者pending-list中未确认的事件（上次宕机前读到的），再读取新事件
+     */
+    private void consume()
+    {
+        ReadOffset offset = ReadOffset.from("0");
+        while (running) {
+            List<MapRecord<String, Object, Object>> list = null;
+            try {
+                //1.XREADGROUP GROUP g1 {consumerName} COUNT n BLOCK 2000 STREAMS stream.shop.geo >
+                list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, consumerName),
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                        StreamOffset.create(SHOP_GEO_STREAM_KEY, offset)
+                );
+                if (list == null || list.isEmpty()) {
+                    // pending-list已经处理完，开始读取新事件
+                    offset = ReadOffset.lastConsumed();
+                    continue;
+                }
+                //2.整批写入Redis，一次性ACK
+                apply(list);
+            } catch (Exception e) {
+                // 未确认的事件留在pending-list中，从头重新处理；失败次数太多的放弃
+                failedBatches.increment();
+                offset = ReadOffset.from("0");
+                log.error("处理店铺坐标变更事件异常", e);
+                if (list != null) {
+                    dropExhausted(list);
+                }
+                sleepQuietly();
+            }
+        }
+    }
+
+    /**
+     * 记录这批事件的失败次数，达到 maxAttempts 的确认后放弃，由对账修复
+     */
+    private void dropExhausted(List<MapRecord<String, Object, Object>> list)
+    {
+        List<RecordId> exhausted = new ArrayList<>();
+        for (MapRecord<String, Object, Object> record : list) {
+            if (attempts.merge(record.getId(), 1, Integer::sum) >= maxAttempts) {
+                attempts.remove(record.getId());
+                exhausted.add(record.getId());
+            }
+        }
+        if (exhausted.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForStream().acknowledge(SHOP_GEO_STREAM_KEY, GROUP_NAME, exhausted.toArray(new RecordId[0]));
+            dropped.add(exhausted.size());
+            log.warn("店铺坐标变更事件处理{}次仍失败，放弃并等待对账修复：{}", maxAttempts, exhausted);
+        } catch (Exception e) {
+            log.error("确认店铺坐标变更事件失败", e);
+        }
+    }
+
+    /**
+     * 事件中的店铺id，无法解析时返回null
+     */
+    private static Long parseId(MapRecord<String, Object, Object> record)
+    {
+        Object id = record.getValue().get("id");
+        try {
+            return id == null ? null : Long.valueOf(id.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void apply(List<MapRecord<String, Object, Object>> list)
+    {
+        //1.一次IN查询这批店铺当前的数据，无法解析的事件跳过（一并确认，重试也不会成功）
+        Map<MapRecord<String, Object, Object>, Long> events = new LinkedHashMap<>();
+        for (MapRecord<String, Object, Object> record : list) {
+            Long id = parseId(record);
+            if (id == null) {
+                malformed.increment();
+                log.warn("无法解析的店铺坐标变更事件，直接确认：{} {}", record.getId(), record.getValue());
+            } else {
+                events.put(record, id);
+            }
+        }
+        Map<Long, Shop> shops = events.isEmpty() ? Collections.emptyMap() : shopService.query()
+                .select("id", "type_id", "x", "y")
+                .in("id", new HashSet<>(events.values()))
+                .list()
+                .stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+
+        //2.管道写入：类型变化时从旧类型删除，再写入当前类型
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<MapRecord<String, Object, Object>, Long> event : events.entrySet()) {
+                MapRecord<String, Object, Object> record = event.getKey();
+                Long id = event.getValue();
+                Object oldTypeId = record.getValue().get("oldTypeId");
+                Shop shop = shops.get(id);
+                if (oldTypeId != null && (shop == null || !oldTypeId.toString().equals(String.valueOf(shop.getTypeId())))) {
+                    connection.zRem(bytes(SHOP_GEO_KEY + oldTypeId), bytes(id.toString()));
+                }
+                if (shop == null) {
+                    continue;
+                }
+                if (shop.getX() == null || shop.getY() == null) {
+                    connection.zRem(bytes(SHOP_GEO_KEY + shop.getTypeId()), bytes(id.toString()));
+                } else {
+                    connection.geoAdd(bytes(SHOP_GEO_KEY + shop.getTypeId()),
+                            new Point(shop.getX(), shop.getY()), bytes(id.toString()));
+                }
+            }
+            return null;
+        });
+
+        //3.XACK stream.shop.geo g1 id1 id2 ...
+        RecordId[] recordIds = list.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(SHOP_GEO_STREAM_KEY, GROUP_NAME, recordIds);
+        applied.add(events.size());
+        for (RecordId recordId : recordIds) {
+            attempts.remove(recordId);
+        }
+    }
+
+    /**
+     * 对账：持有锁的节点修复Redis，其余节点只在内存网格索引已建立时刷新它
+     */
+    public void reconcile()
+    {
+        RLock lock = redissonClient.getLock(LOCK_SHOP_GEO_RECONCILE_KEY);
+        boolean isLock = lock.tryLock();
+        try {
+            if (!isLock && !shopGeoIndex.isBuilt()) {
+                return;
+            }
+            long begin = System.currentTimeMillis();
+            List<Shop> all = shopGeoIndex.isBuilt() ? new ArrayList<>() : null;
+            Set<Long> typeIds = new HashSet<>();
+            //1.按id游标分批读取数据库
+            long lastId = 0;
+            while (running) {
+                List<Shop> shops = shopService.query()
+                        .select("id", "type_id", "x", "y")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + chunkSize)
+                        .list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                if (isLock) {
+                    repairChunk(shops);
+                }
+                if (all != null) {
+                    all.addAll(shops);
+                }
+                shops.forEach(shop -> typeIds.add(shop.getTypeId()));
+                lastId = shops.get(shops.size() - 1).getId();
+                if (shops.size() < chunkSize) {
+                    break;
+                }
+            }
+            if (isLock) {
+                //2.Redis中多出来的店铺（已删除或者类型已变化）
+                shopTypeService.listObjs(shopTypeService.query().select("id").getWrapper(), id -> ((Number) id).longValue())
+                        .forEach(typeIds::add);
+                typeIds.forEach(this::removeStale);
+                //3.对账开始前就已投递、至今未确认的事件（放弃的、已下线实例的），店铺已经按数据库修复，确认掉
+                ackRepairedPending(System.currentTimeMillis() - begin);
+                //4.裁剪事件流
+                stringRedisTemplate.opsForStream().trim(SHOP_GEO_STREAM_KEY, streamMaxLen, true);
+                reconcileRuns.increment();
+                lastReconcileMillis = System.currentTimeMillis();
+            }
+            //5.刷新内存网格索引
+            if (all != null) {
+                shopGeoIndex.rebuild(all);
+            }
+            log.debug("店铺坐标对账完成，耗时{}ms", System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺坐标对账失败", e);
+        } finally {
+            if (isLock) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 分页读取消费者组的pending-list（所有消费者），确认空闲时间超过本次对账耗时的事件：
+     * 这些事件在对账读取数据库之前已经发出，它们的店铺已经由对账修复
+     */
+    private void ackRepairedPending(long reconcileMillis)
+    {
+        Duration minIdle = Duration.ofMillis(reconcileMillis);
+        String lastId = null;
+        while (running) {
+            // 从上一页最后一条开始（包含），跳过这一条
+            Range<String> range = lastId == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(SHOP_GEO_STREAM_KEY, GROUP_NAME, range, chunkSize + 1);
+            if (pending == null || pending.isEmpty()) {
+                return;
+            }
+            List<RecordId> repaired = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (!message.getIdAsString().equals(lastId)
+                        && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) > 0) {
+                    repaired.add(message.getId());
+                }
+            }
+            if (!repaired.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(SHOP_GEO_STREAM_KEY, GROUP_NAME, repaired.toArray(new RecordId[0]));
+                orphansAcked.add(repaired.size());
+            }
+            String tail = pending.get(pending.size() - 1).getIdAsString();
+            if (tail.equals(lastId) || pending.size() <= chunkSize) {
+                return;
+            }
+            lastId = tail;
+        }
+    }
+
+    /**
+     * 管道批量GEOPOS比较这批店铺的坐标，缺失或者不一致的管道批量GEOADD
+     */
+    private void repairChunk(List<Shop> shops)
+    {
+        List<Shop> located = shops.stream()
+                .filter(shop -> shop.getX() != null && shop.getY() != null)
+                .collect(Collectors.toList());
+        List<Object> positions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : located) {
+                connection.geoPos(bytes(SHOP_GEO_KEY + shop.getTypeId()), bytes(shop.getId().toString()));
+            }
+            return null;
+        });
+        List<Shop> stale = new ArrayList<>();
+        for (int i = 0; i < located.size(); i++) {
+            Shop shop = located.get(i);
+            Point point = firstPoint(positions.get(i));
+            if (point == null
+                    || ShopGeoIndex.distance(point.getX(), point.getY(), shop.getX(), shop.getY()) > POSITION_TOLERANCE) {
+                stale.add(shop);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : stale) {
+                connection.geoAdd(bytes(SHOP_GEO_KEY + shop.getTypeId()),
+                        new Point(shop.getX(), shop.getY()), bytes(shop.getId().toString()));
+            }
+            return null;
+        });
+        reconcileAdded.add(stale.size());
+        log.info("店铺坐标对账：修复{}个店铺", stale.size());
+    }
+
+    /**
+     * 按排名分批读取shop:geo:{typeId}，删除数据库中不存在、类型不一致或者没有坐标的店铺
+     */
+    private void removeStale(Long typeId)
+    {
+        String key = SHOP_GEO_KEY + typeId;
+        long start = 0;
+        while (running) {
+            Set<String> members = stringRedisTemplate.opsForZSet().range(key, start, start + chunkSize - 1);
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+            Set<Long> valid = shopService.query()
+                    .select("id")
+                    .in("id", ids)
+                    .eq("type_id", typeId)
+                    .isNotNull("x")
+                    .isNotNull("y")
+                    .list()
+                    .stream()
+                    .map(Shop::getId)
+                    .collect(Collectors.toSet());
+            List<String> stale = ids.stream()
+                    .filter(id -> !valid.contains(id))
+                    .map(String::valueOf)
+                    .collect(Collectors.toList());
+            if (!stale.isEmpty()) {
+                stringRedisTemplate.opsForZSet().remove(key, stale.toArray());
+                reconcileRemoved.add(stale.size());
+                log.info("店铺坐标对账：从{}中删除{}个店铺", key, stale.size());
+            }
+            // 删除后后面的成员排名前移
+            start += members.size() - stale.size();
+            if (members.size() < chunkSize) {
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Point firstPoint(Object positions)
+    {
+        if (!(positions instanceof List) || ((List<Object>) positions).isEmpty()) {
+            return null;
+        }
+        Object point = ((List<Object>) positions).get(0);
+        return point instanceof Point ? (Point) point : null;
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void sleepQuietly()
+    {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 事件发送、消费、对账修复的次数
+     */
+    public Map<String, Object> stats()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("published", published.sum());
+        map.put("applied", applied.sum());
+        map.put("failedBatches", failedBatches.sum());
+        map.put("malformed", malformed.sum());
+        map.put("dropped", dropped.sum());
+        map.put("orphansAcked", orphansAcked.sum());
+        map.put("consumerName", consumerName);
+        map.put("streamLength", stringRedisTemplate.opsForStream().size(SHOP_GEO_STREAM_KEY));
+        map.put("reconcileRuns", reconcileRuns.sum());
+        map.put("reconcileAdded", reconcileAdded.sum());
+        map.put("reconcileRemoved", reconcileRemoved.sum());
+        map.put("lastReconcileMillis", lastReconcileMillis);
+        return map;
+    }
+}
@@ -0,0 +1,364 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 店铺名称的压缩前缀树（只有一个子节点的路径合并成一个节点），节点上保存子树中销量、评论数最高的K个店铺。
+ * 子树中的店铺不超过K个时不保存，查询时直接遍历子树。
+ * 写操作由调用方加锁（加载时只有一个线程），结构变化（新增、拆分、合并节点）时复制数组或节点后整体替换，查询不加锁
+ */
+class ShopNameTrie {
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final Doc[] NO_DOCS = new Doc[0];
+
+    /**
+     * 销量、评论数从高到低
+     */
+    private static final Comparator<Doc> POPULARITY = Comparator.<Doc>comparingInt(doc -> doc.sold).reversed()
+            .thenComparing(Comparator.<Doc>comparingInt(doc -> doc.comments).reversed())
+            .thenComparingLong(doc -> doc.id);
+
+    private final int k;
+    private final Node root = new Node("");
+    private final Map<Long, Doc> docsById = new ConcurrentHashMap<>();
+
+    /**
+     * @param k 每个节点保存的店铺数，也是一次联想最多返回的条数
+     */
+    ShopNameTrie(int k) {
+        this.k = k;
+    }
+
+    /**
+     * 新增或更新店铺，名称、销量、评论数变化时先删除旧的
+     */
+    void put(Shop shop) {
+        if (shop.getName() == null) {
+            remove(shop.getId());
+            return;
+        }
+        Doc doc = new Doc(shop);
+        if (doc.key.isEmpty()) {
+            remove(doc.id);
+            return;
+        }
+        Doc old = docsById.get(doc.id);
+        if (old != null) {
+            if (old.key.equals(doc.key) && old.sold == doc.sold && old.comments == doc.comments && old.name.equals(doc.name)) {
+                return;
+            }
+            remove(doc.id);
+        }
+        insert(doc);
+        docsById.put(doc.id, doc);
+    }
+
+    private void insert(Doc doc) {
+        String key = doc.key;
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int i = 0;
+        while (i < key.length()) {
+            Node child = node.child(key.charAt(i));
+            if (child == null) {
+                //1.没有相同首字符的子节点，剩余部分作为一个叶子节点
+                Node leaf = new Node(key.substring(i));
+                leaf.docs = new Doc[]{doc};
+                leaf.count = 1;
+                node.putChild(leaf);
+                break;
+            }
+            int common = commonPrefix(child.label, key, i);
+            if (common < child.label.length()) {
+                //2.只匹配了子节点的一部分，拆分成 公共部分 -> 剩余部分
+                Node mid = new Node(child.label.substring(0, common));
+                mid.children = new Node[]{child.copy(child.label.substring(common))};
+                mid.count = child.count;
+                mid.top = child.top;
+                node.putChild(mid);
+                child = mid;
+            }
+            node = child;
+            path.add(node);
+            i += common;
+        }
+        if (i == key.length()) {
+            //3.名称在这个节点结束
+            Doc[] docs = node.docs;
+            Doc[] copy = Arrays.copyOf(docs, docs.length + 1);
+            copy[docs.length] = doc;
+            node.docs = copy;
+        }
+        //4.从下往上更新路径上的店铺数和top-K（计算top-K时用到子节点的top-K）
+        for (int j = path.size() - 1; j >= 0; j--) {
+            Node visited = path.get(j);
+            visited.count = visited.count + 1;
+            if (visited.top != null) {
+                visited.top = offer(visited.top, doc);
+            } else if (visited.count > k) {
+                visited.top = computeTop(visited);
+            }
+        }
+    }
+
+    void remove(Long id) {
+        Doc doc = docsById.remove(id);
+        if (doc == null) {
+            return;
+        }
+        //1.找到名称结束的节点
+        String key = doc.key;
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int i = 0;
+        while (i < key.length()) {
+            node = node.child(key.charAt(i));
+            if (node == null || !key.startsWith(node.label, i)) {
+                return;
+            }
+            path.add(node);
+            i += node.label.length();
+        }
+        List<Doc> docs = new ArrayList<>(Arrays.asList(node.docs));
+        docs.removeIf(d -> d.id == doc.id);
+        node.docs = docs.isEmpty() ? NO_DOCS : docs.toArray(NO_DOCS);
+
+        //2.从下往上更新店铺数和top-K
+        for (int j = path.size() - 1; j >= 0; j--) {
+            Node visited = path.get(j);
+            visited.count = visited.count - 1;
+            if (visited.count <= k) {
+                visited.top = null;
+            } else if (contains(visited.top, doc)) {
+                visited.top = computeTop(visited);
+            }
+        }
+
+        //3.删除空节点，合并只剩一个子节点的节点
+        for (int j = path.size() - 1; j >= 1; j--) {
+            Node visited = path.get(j);
+            Node parent = path.get(j - 1);
+            if (visited.count == 0) {
+                parent.removeChild(visited);
+            } else if (visited.docs.length == 0 && visited.children.length == 1) {
+                Node only = visited.children[0];
+                parent.putChild(only.copy(visited.label + only.label));
+            }
+        }
+    }
+
+    List<Doc> suggest(String prefix, int limit) {
+        //1.找到前缀结束的节点，前缀可能在节点的label中间结束
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            node = node.child(prefix.charAt(i));
+            if (node == null) {
+                return new ArrayList<>();
+            }
+            int length = Math.min(node.label.length(), prefix.length() - i);
+            if (!node.label.regionMatches(0, prefix, i, length)) {
+                return new ArrayList<>();
+            }
+            i += length;
+        }
+        //2.有top-K直接返回，否则子树中不超过K个店铺，遍历后排序
+        Doc[] top = node.top;
+        List<Doc> docs;
+        if (top != null) {
+            docs = Arrays.asList(top);
+        } else {
+            docs = new ArrayList<>();
+            collect(node, docs);
+            docs.sort(POPULARITY);
+        }
+        return docs.size() > limit ? new ArrayList<>(docs.subList(0, limit)) : new ArrayList<>(docs);
+    }
+
+    /**
+     * 由名称在这个节点结束的店铺和各子节点的top-K（没有top-K的子节点遍历子树）合并得到
+     */
+    private Doc[] computeTop(Node node) {
+        List<Doc> candidates = new ArrayList<>(Arrays.asList(node.docs));
+        for (Node child : node.children) {
+            if (child.top != null) {
+                candidates.addAll(Arrays.asList(child.top));
+            } else {
+                collect(child, candidates);
+            }
+        }
+        candidates.sort(POPULARITY);
+        return candidates.subList(0, Math.min(k, candidates.size())).toArray(NO_DOCS);
+    }
+
+    private Doc[] offer(Doc[] top, Doc doc) {
+        if (top.length >= k && POPULARITY.compare(doc, top[top.length - 1]) >= 0) {
+            return top;
+        }
+        Doc[] copy = Arrays.copyOf(top, Math.min(top.length + 1, k));
+        int i = Math.min(top.length, k - 1);
+        while (i > 0 && POPULARITY.compare(doc, copy[i - 1]) < 0) {
+            copy[i] = copy[i - 1];
+            i--;
+        }
+        copy[i] = doc;
+        return copy;
+    }
+
+    private static void collect(Node node, List<Doc> docs) {
+        docs.addAll(Arrays.asList(node.docs));
+        for (Node child : node.children) {
+            collect(child, docs);
+        }
+    }
+
+    private static boolean contains(Doc[] top, Doc doc) {
+        if (top == null) {
+            return false;
+        }
+        for (Doc d : top) {
+            if (d.id == doc.id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int commonPrefix(String label, String key, int from) {
+        int max = Math.min(label.length(), key.length() - from);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(from + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    Map<String, Object> stats() {
+        int[] counts = new int[2];
+        count(root, counts);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("shops", root.count);
+        map.put("nodes", counts[0]);
+        map.put("topKNodes", counts[1]);
+        return map;
+    }
+
+    private static void count(Node node, int[] counts) {
+        counts[0]++;
+        if (node.top != null) {
+            counts[1]++;
+        }
+        for (Node child : node.children) {
+            count(child, counts);
+        }
+    }
+
+    static class Doc {
+        final long id;
+        final String name;
+        private final String key;
+        private final int sold;
+        private final int comments;
+
+        Doc(Shop shop) {
+            this.id = shop.getId();
+            this.name = shop.getName();
+            this.key = ShopSearchIndex.normalize(shop.getName());
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+            this.comments = shop.getComments() == null ? 0 : shop.getComments();
+        }
+    }
+
+    private static class Node {
+        /**
+         * 从父节点到这个节点的字符，拆分、合并时创建新节点，不修改
+         */
+        private final String label;
+        private volatile Node[] children = NO_CHILDREN;
+        /**
+         * 名称正好到这个节点结束的店铺（同名的连锁店）
+         */
+        private volatile Doc[] docs = NO_DOCS;
+        /**
+         * 子树中的店铺数
+         */
+        private volatile int count;
+        /**
+         * 子树中最热门的K个店铺，count不超过K时为null
+         */
+        private volatile Doc[] top;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node copy(String newLabel) {
+            Node node = new Node(newLabel);
+            node.children = children;
+            node.docs = docs;
+            node.count = count;
+            node.top = top;
+            return node;
+        }
+
+        Node child(char c) {
+            Node[] nodes = children;
+            int low = 0;
+            int high = nodes.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char midChar = nodes[mid].label.charAt(0);
+                if (midChar < c) {
+                    low = mid + 1;
+                } else if (midChar > c) {
+                    high = mid - 1;
+                } else {
+                    return nodes[mid];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 新增或替换首字符相同的子节点
+         */
+        void putChild(Node child) {
+            Node[] nodes = children;
+            char c = child.label.charAt(0);
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i].label.charAt(0) == c) {
+                    Node[] copy = nodes.clone();
+                    copy[i] = child;
+                    children = copy;
+                    return;
+                }
+            }
+            Node[] copy = Arrays.copyOf(nodes, nodes.length + 1);
+            copy[nodes.length] = child;
+            Arrays.sort(copy, Comparator.comparingInt(node -> node.label.charAt(0)));
+            children = copy;
+        }
+
+        void removeChild(Node child) {
+            Node[] nodes = children;
+            List<Node> copy = new ArrayList<>(nodes.length);
+            for (Node node : nodes) {
+                if (node != child) {
+                    copy.add(node);
+                }
+            }
+            children = copy.isEmpty() ? NO_CHILDREN : copy.toArray(NO_CHILDREN);
+        }
+    }
+}
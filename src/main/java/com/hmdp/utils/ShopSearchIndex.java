@@ -0,0 +1,368 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SHOP_SEARCH_UPDATE_CHANNEL;
+
+/**
+ * 店铺名称、商圈、地址的内存倒排索引，代替 LIKE '%name%' 的全表扫描
+ * 中文不分词，按单字和相邻两个字（n-gram）建立倒排表；查询时取所有两字词倒排表的交集，再校验原文包含关键字。
+ * 与LIKE不同：关键字和字段都去掉空白、转成小写后再匹配，例如“星 巴克”能查到“星巴克”。
+ * 排序：名称命中优先于商圈、地址，再按评分、销量从高到低。
+ * 启动时按id游标分批加载，店铺新增、修改后通过Redis发布订阅通知所有节点重新加载该店铺
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex implements ApplicationRunner, MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.shop.search.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 启动加载时每批读取的店铺数
+     */
+    @Value("${hmdp.shop.search.chunk-size:1000}")
+    private int chunkSize;
+
+    /**
+     * 最多能翻到的结果条数（页码 * 每页条数），超过后返回空页，避免页码过大时堆占用过多内存
+     */
+    @Value("${hmdp.shop.search.max-depth:1000}")
+    private int maxDepth;
+
+    @Resource
+    private IShopService shopService;
+
+    /**
+     * 店铺id -> 参与检索的字段
+     */
+    private volatile Map<Long, Doc> docs = new ConcurrentHashMap<>();
+
+    /**
+     * 单字、两字词 -> 包含它的店铺id
+     */
+    private volatile Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    /**
+     * 加载期间收到的变更，加载完成后重新应用
+     */
+    private Set<Long> updatedWhileBuilding;
+
+    public ShopSearchIndex(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(SHOP_SEARCH_UPDATE_CHANNEL));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // 加载失败时按名称查询继续使用数据库
+            log.error("店铺搜索索引加载失败", e);
+        }
+    }
+
+    /**
+     * 索引是否可用，不可用时调用方应该回退到数据库查询
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * 按id游标分批读取全部店铺，建立新索引后整体替换
+     */
+    public void rebuild()
+    {
+        long begin = System.currentTimeMillis();
+        synchronized (this) {
+            updatedWhileBuilding = new HashSet<>();
+        }
+        Map<Long, Doc> newDocs = new ConcurrentHashMap<>();
+        Map<String, Set<Long>> newPostings = new ConcurrentHashMap<>();
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopService.query()
+                    .select("id", "name", "area", "address", "score", "sold")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + chunkSize)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            for (Shop shop : shops) {
+                Doc doc = new Doc(shop);
+                newDocs.put(doc.id, doc);
+                index(newPostings, doc);
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < chunkSize) {
+                break;
+            }
+        }
+        Set<Long> updated;
+        synchronized (this) {
+            docs = newDocs;
+            postings = newPostings;
+            updated = updatedWhileBuilding;
+            updatedWhileBuilding = null;
+            ready = true;
+        }
+        // 加载期间修改过的店铺可能读到的是旧数据，重新加载
+        updated.forEach(this::reload);
+        log.info("店铺搜索索引加载完成，{}个店铺，{}个词，耗时{}ms",
+                newDocs.size(), newPostings.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 店铺新增、修改后调用，通知所有节点（包括本机）重新加载该店铺
+     */
+    public void publish(Long shopId)
+    {
+        if (enabled) {
+            stringRedisTemplate.convertAndSend(SHOP_SEARCH_UPDATE_CHANNEL, shopId.toString());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        reload(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 从数据库重新加载一个店铺，店铺不存在时从索引中删除
+     * 发布订阅的消息在不同线程中处理，在锁内查询数据库，保证最后更新索引的线程读到的是最新数据
+     */
+    private void reload(Long shopId)
+    {
+        synchronized (this) {
+            Shop shop = shopService.query()
+                    .select("id", "name", "area", "address", "score", "sold")
+                    .eq("id", shopId)
+                    .one();
+            if (updatedWhileBuilding != null) {
+                updatedWhileBuilding.add(shopId);
+            }
+            Doc old = docs.remove(shopId);
+            if (old != null) {
+                for (String gram : old.grams()) {
+                    Set<Long> ids = postings.get(gram);
+                    if (ids != null) {
+                        ids.remove(shopId);
+                        if (ids.isEmpty()) {
+                            postings.remove(gram);
+                        }
+                    }
+                }
+            }
+            if (shop != null) {
+                Doc doc = new Doc(shop);
+                docs.put(shopId, doc);
+                index(postings, doc);
+            }
+        }
+    }
+
+    private static void index(Map<String, Set<Long>> postings, Doc doc)
+    {
+        for (String gram : doc.grams()) {
+            postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(doc.id);
+        }
+    }
+
+    /**
+     * 分页查询包含关键字的店铺
+     * @param keyword 关键字，匹配名称、商圈、地址
+     * @param current 页码
+     * @param pageSize 每页条数
+     * @return 这一页的店铺id，按名称命中、评分、销量排序；超过 maxDepth 的页返回空
+     */
+    public List<Long> search(String keyword, int current, int pageSize)
+    {
+        String query = normalize(keyword);
+        List<Long> result = new ArrayList<>();
+        if (query.isEmpty() || current < 1 || (long) current * pageSize > maxDepth) {
+            return result;
+        }
+        //1.关键字的词对应的倒排表，任意一个不存在则没有结果
+        Map<String, Set<Long>> currentPostings = postings;
+        List<Set<Long>> lists = new ArrayList<>();
+        for (String gram : queryGrams(query)) {
+            Set<Long> ids = currentPostings.get(gram);
+            if (ids == null) {
+                return result;
+            }
+            lists.add(ids);
+        }
+        //2.遍历最短的倒排表，其余倒排表判断是否包含
+        lists.sort(Comparator.comparingInt(Set::size));
+        Set<Long> shortest = lists.get(0);
+        int k = current * pageSize;
+        // 堆顶是当前第k名，排在它后面的直接跳过
+        PriorityQueue<Hit> top = new PriorityQueue<>(Hit.ORDER.reversed());
+        Map<Long, Doc> currentDocs = docs;
+        for (Long id : shortest) {
+            if (!containsAll(lists, id)) {
+                continue;
+            }
+            Doc doc = currentDocs.get(id);
+            int field = doc == null ? -1 : doc.matchedField(query);
+            if (field < 0) {
+                // n-gram都命中但原文不连续，不是真正的匹配
+                continue;
+            }
+            Hit hit = new Hit(doc, field);
+            if (top.size() < k) {
+                top.offer(hit);
+            } else if (Hit.ORDER.compare(hit, top.peek()) < 0) {
+                top.poll();
+                top.offer(hit);
+            }
+        }
+        //3.排序后取最后一页
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(Hit.ORDER);
+        for (int i = (current - 1) * pageSize; i < hits.size(); i++) {
+            result.add(hits.get(i).doc.id);
+        }
+        return result;
+    }
+
+    private static boolean containsAll(List<Set<Long>> lists, Long id)
+    {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 一个字的关键字查单字的倒排表，否则查所有相邻两个字
+     */
+    private static List<String> queryGrams(String query)
+    {
+        List<String> grams = new ArrayList<>();
+        if (query.length() == 1) {
+            grams.add(query);
+            return grams;
+        }
+        for (int i = 0; i + 1 < query.length(); i++) {
+            grams.add(query.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    /**
+     * 去掉空白并转成小写，名称联想也按这个规则匹配
+     */
+    public static String normalize(String text)
+    {
+        return text == null ? "" : StrUtil.cleanBlank(text).toLowerCase();
+    }
+
+    /**
+     * 店铺数、词数
+     */
+    public Map<String, Object> stats()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", ready);
+        map.put("shops", docs.size());
+        map.put("grams", postings.size());
+        return map;
+    }
+
+    private static class Doc {
+        private final long id;
+        private final String[] fields;
+        private final int score;
+        private final int sold;
+
+        Doc(Shop shop) {
+            this.id = shop.getId();
+            // 名称、商圈、地址，下标越小排序越靠前
+            this.fields = new String[]{normalize(shop.getName()), normalize(shop.getArea()), normalize(shop.getAddress())};
+            this.score = shop.getScore() == null ? 0 : shop.getScore();
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+        }
+
+        /**
+         * 每个字段的单字和相邻两个字，不跨字段
+         */
+        Set<String> grams() {
+            Set<String> grams = new HashSet<>();
+            for (String field : fields) {
+                for (int i = 0; i < field.length(); i++) {
+                    grams.add(field.substring(i, i + 1));
+                    if (i + 1 < field.length()) {
+                        grams.add(field.substring(i, i + 2));
+                    }
+                }
+            }
+            return grams;
+        }
+
+        /**
+         * @return 第一个包含关键字的字段下标，都不包含返回-1
+         */
+        int matchedField(String query) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].contains(query)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class Hit {
+        private static final Comparator<Hit> ORDER = Comparator.<Hit>comparingInt(hit -> hit.field)
+                .thenComparing(hit -> hit.doc.score, Comparator.reverseOrder())
+                .thenComparing(hit -> hit.doc.sold, Comparator.reverseOrder())
+                .thenComparingLong(hit -> hit.doc.id);
+
+        private final Doc doc;
+        private final int field;
+
+        Hit(Doc doc, int field) {
+            this.doc = doc;
+            this.field = field;
+        }
+    }
+}
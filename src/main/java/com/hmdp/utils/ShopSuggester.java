@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SHOP_SUGGEST_UPDATE_CHANNEL;
+
+/**
+ * 店铺名称前缀联想：压缩前缀树（ShopNameTrie），节点上保存子树中销量、评论数最高的K个店铺，
+ * 100万店铺时大部分节点都不需要保存top-K。写操作加锁，查询不加锁。
+ * 启动时按id游标分批加载，店铺新增、修改后通过 shop:suggest:update 通知所有节点逐个更新（与搜索索引是否启用无关）
+ */
+@Slf4j
+@Component
+public class ShopSuggester implements ApplicationRunner, MessageListener {
+
+    @Value("${hmdp.shop.suggest.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个节点保存的店铺数，也是一次联想最多返回的条数
+     */
+    @Value("${hmdp.shop.suggest.top-k:10}")
+    private int topK;
+
+    /**
+     * 启动加载时每批读取的店铺数
+     */
+    @Value("${hmdp.shop.suggest.chunk-size:1000}")
+    private int chunkSize;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    private volatile ShopNameTrie trie;
+
+    /**
+     * 加载期间收到的变更，加载完成后重新应用
+     */
+    private Set<Long> updatedWhileBuilding;
+
+    public ShopSuggester(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        container.addMessageListener(this, new ChannelTopic(SHOP_SUGGEST_UPDATE_CHANNEL));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // 加载失败时联想继续使用数据库
+            log.error("店铺名称联想索引加载失败", e);
+        }
+    }
+
+    /**
+     * 索引是否可用，不可用时调用方应该回退到数据库查询
+     */
+    public boolean isReady()
+    {
+        return trie != null;
+    }
+
+    /**
+     * 按id游标分批读取全部店铺，建立新的前缀树后整体替换
+     */
+    public void rebuild()
+    {
+        long begin = System.currentTimeMillis();
+        synchronized (this) {
+            updatedWhileBuilding = new HashSet<>();
+        }
+        ShopNameTrie newTrie = new ShopNameTrie(topK);
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopService.query()
+                    .select("id", "name", "sold", "comments")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + chunkSize)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            shops.forEach(newTrie::put);
+            lastId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < chunkSize) {
+                break;
+            }
+        }
+        Set<Long> updated;
+        synchronized (this) {
+            trie = newTrie;
+            updated = updatedWhileBuilding;
+            updatedWhileBuilding = null;
+        }
+        // 加载期间修改过的店铺可能读到的是旧数据，重新加载
+        updated.forEach(this::reload);
+        log.info("店铺名称联想索引加载完成，{}，耗时{}ms", newTrie.stats(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 店铺新增、修改后调用，通知所有节点（包括本机）重新加载该店铺
+     */
+    public void publish(Long shopId)
+    {
+        if (enabled) {
+            stringRedisTemplate.convertAndSend(SHOP_SUGGEST_UPDATE_CHANNEL, shopId.toString());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        reload(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 从数据库重新加载一个店铺，店铺不存在时从前缀树中删除
+     * 发布订阅的消息在不同线程中处理，在锁内查询数据库，保证最后更新前缀树的线程读到的是最新数据
+     */
+    private void reload(Long shopId)
+    {
+        synchronized (this) {
+            Shop shop = shopService.query()
+                    .select("id", "name", "sold", "comments")
+                    .eq("id", shopId)
+                    .one();
+            if (updatedWhileBuilding != null) {
+                updatedWhileBuilding.add(shopId);
+            }
+            if (trie == null) {
+                return;
+            }
+            if (shop == null) {
+                trie.remove(shopId);
+            } else {
+                trie.put(shop);
+            }
+        }
+    }
+
+    /**
+     * 名称以prefix开头的店铺，按销量、评论数从高到低
+     * @param prefix 用户输入的前缀
+     * @param limit 最多返回的条数，不超过top-k
+     */
+    public List<Suggestion> suggest(String prefix, int limit)
+    {
+        ShopNameTrie current = trie;
+        String key = ShopSearchIndex.normalize(prefix);
+        List<Suggestion> suggestions = new ArrayList<>();
+        if (current == null || key.isEmpty() || limit <= 0) {
+            return suggestions;
+        }
+        for (ShopNameTrie.Doc doc : current.suggest(key, limit)) {
+            suggestions.add(new Suggestion(doc.id, doc.name));
+        }
+        return suggestions;
+    }
+
+    /**
+     * 店铺数、节点数、保存了top-K的节点数
+     */
+    public Map<String, Object> stats()
+    {
+        ShopNameTrie current = trie;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("ready", current != null);
+        if (current != null) {
+            map.putAll(current.stats());
+        }
+        return map;
+    }
+
+    /**
+     * 联想结果：店铺id和名称
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Suggestion {
+        private Long id;
+        private String name;
+    }
+}
@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 雪花算法ID生成器，生成ID时不访问Redis
+ * ID结构与RedisIdWorker一致：高32位为时间戳（秒），低32位为 workerId(10位) + 序列号(22位)
+ * Redis只用于启动时租用一个唯一的workerId，并定时续期
+ */
+@Slf4j
+public class SnowflakeIdWorker {
+
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 22;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * workerId租约的有效期（秒），每 1/3 有效期续期一次
+     */
+    private static final long WORKER_TTL = 30L;
+    /**
+     * 允许的最大时钟回拨（秒），回拨不超过它时沿用上一次的时间戳继续发号
+     */
+    private static final long MAX_BACKWARD_SECONDS = 5L;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    //初始化脚本
+    static {
+        RENEW_SCRIPT=new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+
+        RELEASE_SCRIPT=new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisIdWorker redisIdWorker;
+
+    /**
+     * 本节点的标示，写入workerId租约中
+     */
+    private final String token = UUID.randomUUID().toString(true);
+
+    /**
+     * 当前租到的workerId，-1表示租约已丢失，此时不能发号
+     */
+    private volatile long workerId = -1;
+
+    /**
+     * 租约的过期时间，续期失败（比如Redis不可用）超过有效期后也不能再发号
+     */
+    private volatile long leaseExpireMillis;
+
+    /**
+     * 上一次发号的状态：时间戳<<22 | 序列号，CAS更新
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snowflake-worker-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, RedisIdWorker redisIdWorker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisIdWorker = redisIdWorker;
+    }
+
+    /**
+     * 租用workerId并开始定时续期
+     */
+    public void start()
+    {
+        workerId = acquireWorkerId();
+        long period = WORKER_TTL / 3;
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止续期并释放workerId
+     */
+    public void shutdown()
+    {
+        heartbeatExecutor.shutdownNow();
+        long id = workerId;
+        workerId = -1;
+        if (id >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), token);
+        }
+    }
+
+    /**
+     * 生成ID
+     */
+    public long nextId()
+    {
+        long worker = workerId;
+        if (worker < 0 || System.currentTimeMillis() > leaseExpireMillis) {
+            throw new IllegalStateException("雪花算法workerId租约已丢失，暂时无法生成ID");
+        }
+        while (true) {
+            long now = redisIdWorker.timestamp(LocalDateTime.now());
+            long last = state.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            if (now < lastTimestamp) {
+                // 时钟回拨：回拨较小时沿用上一次的时间戳，否则拒绝发号
+                if (lastTimestamp - now > MAX_BACKWARD_SECONDS) {
+                    throw new IllegalStateException("时钟回拨" + (lastTimestamp - now) + "秒，拒绝生成ID");
+                }
+                now = lastTimestamp;
+            }
+            long sequence = 0;
+            if (now == lastTimestamp) {
+                sequence = (last & SEQUENCE_MASK) + 1;
+                if (sequence > SEQUENCE_MASK) {
+                    // 这一秒的序列号用完了，等下一秒
+                    Thread.yield();
+                    continue;
+                }
+            }
+            if (state.compareAndSet(last, now << SEQUENCE_BITS | sequence)) {
+                return RedisIdWorker.compose(now, worker << SEQUENCE_BITS | sequence);
+            }
+        }
+    }
+
+    public long getWorkerId()
+    {
+        return workerId;
+    }
+
+    /**
+     * 从随机位置开始依次尝试 SET id:worker:{n} token NX EX ttl
+     */
+    private long acquireWorkerId()
+    {
+        int offset = RandomUtil.randomInt((int) MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (offset + i) & MAX_WORKER_ID;
+            long begin = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, token, WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leaseExpireMillis = begin + TimeUnit.SECONDS.toMillis(WORKER_TTL);
+                log.info("租用雪花算法workerId={}", id);
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有可用的雪花算法workerId");
+    }
+
+    private void heartbeat()
+    {
+        try {
+            long id = workerId;
+            if (id >= 0) {
+                long begin = System.currentTimeMillis();
+                Long renewed = stringRedisTemplate.execute(
+                        RENEW_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + id),
+                        token, String.valueOf(WORKER_TTL)
+                );
+                if (renewed != null && renewed == 1) {
+                    leaseExpireMillis = begin + TimeUnit.SECONDS.toMillis(WORKER_TTL);
+                    return;
+                }
+                // 租约已经过期并可能被其它节点租走，停止发号后重新租用
+                log.error("雪花算法workerId={}的租约已丢失，重新租用", id);
+                workerId = -1;
+            }
+            workerId = acquireWorkerId();
+        } catch (Exception e) {
+            log.error("雪花算法workerId续期异常", e);
+        }
+    }
+}
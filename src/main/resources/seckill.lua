@@ -3,8 +3,30 @@
 local voucherId = ARGV[1]
 --1.2用户id
 local userId = ARGV[2]
---1.3订单id
+--1.3订单id（脚本生成订单id时，为订单id的时间戳部分）
 local orderId = ARGV[3]
+--1.4消息队列（stream.orders）
+local streamKey = KEYS[1]
+--1.5消息队列的近似最大长度，大于0时 XADD MAXLEN ~ n
+local maxLen = tonumber(ARGV[4]) or 0
+--1.6订单序列号的自增key（icr:order:yyyy:MM:dd），传入时由脚本在下单成功后生成订单id
+local idKey = KEYS[2]
+
+--返回结果：脚本生成订单id时返回 {结果, 序列号}
+local function reply(code, seq)
+    if(idKey) then
+        return {code, seq}
+    end
+    return code
+end
+
+--发送消息到队列中，XADD stream.orders [MAXLEN ~ n] * k1 v1 k2 v2 ...
+local function xadd(...)
+    if(maxLen > 0) then
+        return redis.call('xadd',streamKey,'MAXLEN','~',maxLen,'*',...)
+    end
+    return redis.call('xadd',streamKey,'*',...)
+end
 
 --2.数据id
 --2.1库存id
@@ -16,19 +38,24 @@ local orderKey='seckill:order:' .. voucherId
 --3.1判断库存是否充足 get stockKey
 if(tonumber(redis.call('get',stockKey)) <= 0) then
     --3.2库存不足，返回1
-    return 1
+    return reply(1, 0)
 end
 --3.2 判断用户是否下单 SISMEMBER orderKey userId（判断集合orderKey中有没有这个userId）
 if(redis.call('sismember',orderKey,userId)==1) then
     --3.3 存在，说明是重复下单，返回2
-    return 2
+    return reply(2, 0)
 end
 --3.4扣库存 incrby stockKey -1
 redis.call('incrby',stockKey,-1)
 --3.5下单（保存用户） sadd orderKey userId
 redis.call('sadd',orderKey,userId)
 --3.6发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+if(idKey) then
+    --3.6.1只有抢到的请求才消耗序列号；Lua数字无法精确表示64位id，由消费者拼接 idTs<<32 | idSeq
+    local seq = redis.call('incr',idKey)
+    xadd('userId',userId,'voucherId',voucherId,'idTs',orderId,'idSeq',seq)
+    return reply(0, seq)
+end
+xadd('userId',userId,'voucherId',voucherId,'id',orderId)
 --成功返回0
 return 0
-
@@ -0,0 +1,13 @@
+-- 每张券每秒的全局请求计数（所有节点共享）
+-- KEYS[1] 计数key（seckill:rate:{voucherId}:{当前秒}）
+-- ARGV[1] 每秒允许的请求数
+local count = redis.call('incr',KEYS[1])
+if(count == 1) then
+    -- 窗口第一次计数，设置过期时间
+    redis.call('expire',KEYS[1],2)
+end
+if(count > tonumber(ARGV[1])) then
+    -- 超过限制，返回0
+    return 0
+end
+return 1
@@ -0,0 +1,66 @@
+--1.参数列表
+--1.1优惠券id
+local voucherId = ARGV[1]
+--1.2用户id
+local userId = ARGV[2]
+--1.3订单id（脚本生成订单id时，为订单id的时间戳部分）
+local orderId = ARGV[3]
+--1.4库存分片数
+local shards = tonumber(ARGV[4])
+--1.5消息队列（stream.orders）
+local streamKey = KEYS[1]
+--1.6消息队列的近似最大长度，大于0时 XADD MAXLEN ~ n
+local maxLen = tonumber(ARGV[5]) or 0
+--1.7订单序列号的自增key（icr:order:yyyy:MM:dd），传入时由脚本在下单成功后生成订单id
+local idKey = KEYS[2]
+
+--返回结果：脚本生成订单id时返回 {结果, 序列号}
+local function reply(code, seq)
+    if(idKey) then
+        return {code, seq}
+    end
+    return code
+end
+
+--发送消息到队列中，XADD stream.orders [MAXLEN ~ n] * k1 v1 k2 v2 ...
+local function xadd(...)
+    if(maxLen > 0) then
+        return redis.call('xadd',streamKey,'MAXLEN','~',maxLen,'*',...)
+    end
+    return redis.call('xadd',streamKey,'*',...)
+end
+
+--2.数据id
+--2.1用户固定落在 userId % shards 这个分片上，一人一单只需要检查这一个分片的集合
+local home = tonumber(userId) % shards
+--2.2订单id
+local orderKey = 'seckill:order:' .. voucherId .. ':' .. home
+
+--3.脚本业务
+--3.1 判断用户是否下单 SISMEMBER orderKey userId
+if(redis.call('sismember',orderKey,userId)==1) then
+    --3.2 存在，说明是重复下单，返回2
+    return reply(2, 0)
+end
+--3.3从用户所在分片开始找有库存的分片，分片卖完时依次尝试兄弟分片
+for i = 0, shards - 1 do
+    local stockKey = 'seckill:stock:' .. voucherId .. ':' .. ((home + i) % shards)
+    if((tonumber(redis.call('get',stockKey)) or 0) > 0) then
+        --3.4扣库存 incrby stockKey -1
+        redis.call('incrby',stockKey,-1)
+        --3.5下单（保存用户） sadd orderKey userId
+        redis.call('sadd',orderKey,userId)
+        --3.6发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
+        if(idKey) then
+            --3.6.1只有抢到的请求才消耗序列号；Lua数字无法精确表示64位id，由消费者拼接 idTs<<32 | idSeq
+            local seq = redis.call('incr',idKey)
+            xadd('userId',userId,'voucherId',voucherId,'idTs',orderId,'idSeq',seq)
+            return reply(0, seq)
+        end
+        xadd('userId',userId,'voucherId',voucherId,'id',orderId)
+        --成功返回0
+        return 0
+    end
+end
+--3.7所有分片库存都不足，返回1
+return reply(1, 0)
@@ -0,0 +1,4 @@
+-- 删除所有消费者组都已确认的消息 XTRIM key MINID ~ minId
+-- KEYS[1] 消息队列
+-- ARGV[1] 需要保留的最小消息id
+return redis.call('xtrim',KEYS[1],'MINID','~',ARGV[1])
@@ -0,0 +1,97 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheEntry;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.SmileCacheCodec;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 缓存编码对比：JSON（Hutool）与 Smile（二进制）的体积、编码耗时、解码耗时，
+ * 以及只读取头部判断逻辑过期的耗时
+ */
+class CacheCodecBenchmarkTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    void compareCodecs() {
+        Shop shop = shop();
+        List<CacheCodec> codecs = Arrays.asList(new JsonCacheCodec(), new SmileCacheCodec());
+        long expireMillis = System.currentTimeMillis() + 30_000;
+
+        for (CacheCodec codec : codecs) {
+            byte[] entry = CacheEntry.encode(codec, shop, expireMillis, 5);
+            // 编解码结果一致
+            assertEquals(shop, CacheEntry.decode(codec, entry, Shop.class));
+            assertEquals(expireMillis, CacheEntry.expireMillis(entry));
+
+            run(codec, shop, expireMillis, WARMUP);
+            long[] nanos = run(codec, shop, expireMillis, ITERATIONS);
+            System.out.printf("%-6s size=%4d bytes, encode=%6d ns/op, decode=%6d ns/op, header=%4d ns/op%n",
+                    codec.name(), entry.length,
+                    nanos[0] / ITERATIONS, nanos[1] / ITERATIONS, nanos[2] / ITERATIONS);
+        }
+    }
+
+    /**
+     * @return 编码、解码、读取头部的总耗时
+     */
+    private long[] run(CacheCodec codec, Shop shop, long expireMillis, int iterations) {
+        long[] nanos = new long[3];
+        long sink = 0;
+        byte[] entry = null;
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            entry = CacheEntry.encode(codec, shop, expireMillis, 5);
+            sink += entry.length;
+        }
+        nanos[0] = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += CacheEntry.decode(codec, entry, Shop.class).getSold();
+        }
+        nanos[1] = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += CacheEntry.expireMillis(entry);
+        }
+        nanos[2] = System.nanoTime() - begin;
+
+        // 防止循环被优化掉
+        if (sink == 42) {
+            System.out.println(sink);
+        }
+        return nanos;
+    }
+
+    private Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}
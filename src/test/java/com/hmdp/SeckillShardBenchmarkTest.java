@@ -0,0 +1,122 @@
+package com.hmdp;
+
+import com.hmdp.service.impl.VoucherServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 单key秒杀脚本与分片秒杀脚本（1、4、16个分片）的对比
+ */
+@SpringBootTest
+class SeckillShardBenchmarkTest {
+
+    private static final Long VOUCHER_ID = 999999L;
+    private static final String STREAM_KEY = "stream.orders.bench";
+    private static final int STOCK = 10000;
+    private static final int THREADS = 300;
+    private static final int REQUESTS_PER_THREAD = 100;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT = script("seckill.lua");
+    private static final DefaultRedisScript<Long> SECKILL_SHARDED_SCRIPT = script("seckill_sharded.lua");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherServiceImpl voucherService;
+
+    private final ExecutorService es = Executors.newFixedThreadPool(THREADS);
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+
+    @AfterEach
+    void tearDown() {
+        Set<String> keys = stringRedisTemplate.keys(SECKILL_STOCK_KEY + VOUCHER_ID + "*");
+        keys.addAll(stringRedisTemplate.keys(SECKILL_ORDER_KEY + VOUCHER_ID + "*"));
+        keys.add(STREAM_KEY);
+        stringRedisTemplate.delete(keys);
+    }
+
+    @Test
+    void testSingleKey() throws InterruptedException {
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(STOCK));
+        run("single key", SECKILL_SCRIPT, Collections.emptyList());
+    }
+
+    @Test
+    void testOneShard() throws InterruptedException {
+        runSharded(1);
+    }
+
+    @Test
+    void testFourShards() throws InterruptedException {
+        runSharded(4);
+    }
+
+    @Test
+    void testSixteenShards() throws InterruptedException {
+        runSharded(16);
+    }
+
+    private void runSharded(int shards) throws InterruptedException {
+        voucherService.saveShardedStock(VOUCHER_ID, STOCK, shards);
+        run(shards + " shards", SECKILL_SHARDED_SCRIPT, Collections.singletonList(String.valueOf(shards)));
+    }
+
+    private void run(String name, DefaultRedisScript<Long> script, List<String> extraArgs) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        AtomicInteger userIds = new AtomicInteger();
+        AtomicInteger success = new AtomicInteger();
+        AtomicLong orderIds = new AtomicLong();
+
+        Runnable task = () -> {
+            for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                String[] args = new String[3 + extraArgs.size()];
+                args[0] = VOUCHER_ID.toString();
+                args[1] = String.valueOf(userIds.incrementAndGet());
+                args[2] = String.valueOf(orderIds.incrementAndGet());
+                for (int j = 0; j < extraArgs.size(); j++) {
+                    args[3 + j] = extraArgs.get(j);
+                }
+                Long result = stringRedisTemplate.execute(script, Collections.singletonList(STREAM_KEY), (Object[]) args);
+                if (result != null && result == 0) {
+                    success.incrementAndGet();
+                }
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < THREADS; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        System.out.println(name + ": time = " + (end - begin) + "ms, success = " + success.get());
+
+        // 不超卖，也不少卖
+        assertEquals(STOCK, success.get());
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmdp;
+
+import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.ShopGeoIndex;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 附近店铺查询：Redis GEOSEARCH 与内存网格索引的耗时对比，两者结果都按距离从近到远排序
+ * 需要先执行 HmDianPingApplicationTests.loadShopData 写入 shop:geo:{typeId}
+ */
+@SpringBootTest
+class ShopGeoSearchBenchmarkTest {
+
+    private static final Long TYPE_ID = 1L;
+    private static final int LIMIT = 10;
+    private static final int WARMUP = 1000;
+    private static final int ITERATIONS = 10000;
+
+    @Resource
+    private ShopServiceImpl shopService;
+
+    @Test
+    void compareRedisAndIndex() {
+        // 杭州附近的随机坐标
+        Random random = new Random(42);
+        double[][] points = new double[ITERATIONS][2];
+        for (double[] point : points) {
+            point[0] = 120.1 + random.nextDouble() * 0.1;
+            point[1] = 30.25 + random.nextDouble() * 0.1;
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            shopService.searchNearbyByRedis(TYPE_ID, points[i][0], points[i][1], LIMIT);
+            shopService.searchNearbyByIndex(TYPE_ID, points[i][0], points[i][1], LIMIT);
+        }
+
+        long begin = System.nanoTime();
+        for (double[] point : points) {
+            assertSorted(shopService.searchNearbyByRedis(TYPE_ID, point[0], point[1], LIMIT));
+        }
+        long redisNanos = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (double[] point : points) {
+            assertSorted(shopService.searchNearbyByIndex(TYPE_ID, point[0], point[1], LIMIT));
+        }
+        long indexNanos = System.nanoTime() - begin;
+
+        System.out.printf("GEOSEARCH: %6d ns/op%n", redisNanos / ITERATIONS);
+        System.out.printf("内存索引:  %6d ns/op%n", indexNanos / ITERATIONS);
+    }
+
+    private void assertSorted(List<ShopGeoIndex.GeoHit> hits) {
+        assertTrue(hits.size() <= LIMIT);
+        for (int i = 1; i < hits.size(); i++) {
+            assertTrue(hits.get(i - 1).getDistance() <= hits.get(i).getDistance());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 店铺名称前缀树：逐个新增、修改、删除店铺后，联想结果与遍历全部店铺一致，删除后节点正确合并
+ */
+class ShopNameTrieTest {
+
+    private static final int K = 3;
+
+    @Test
+    void splitAndMergeNodes() {
+        ShopNameTrie trie = new ShopNameTrie(K);
+        trie.put(shop(1L, "abc", 10));
+        assertEquals(2, trie.stats().get("nodes"));
+
+        // abc 拆分成 ab -> c、d
+        trie.put(shop(2L, "abd", 20));
+        assertEquals(4, trie.stats().get("nodes"));
+        assertEquals(Arrays.asList(2L, 1L), ids(trie.suggest("ab", K)));
+
+        // 删除abd后 ab -> c 合并回 abc
+        trie.remove(2L);
+        assertEquals(2, trie.stats().get("nodes"));
+        assertEquals(Collections.singletonList(1L), ids(trie.suggest("ab", K)));
+        assertEquals(Collections.emptyList(), ids(trie.suggest("abd", K)));
+
+        trie.remove(1L);
+        assertEquals(1, trie.stats().get("nodes"));
+        assertEquals(0, trie.stats().get("shops"));
+    }
+
+    @Test
+    void updateMovesShop() {
+        ShopNameTrie trie = new ShopNameTrie(K);
+        trie.put(shop(1L, "Ab C", 10));
+        // 名称去掉空白、转成小写
+        assertEquals(Collections.singletonList(1L), ids(trie.suggest("abc", K)));
+
+        trie.put(shop(1L, "xyz", 10));
+        assertEquals(Collections.emptyList(), ids(trie.suggest("a", K)));
+        assertEquals(Collections.singletonList(1L), ids(trie.suggest("x", K)));
+        assertEquals(1, trie.stats().get("shops"));
+    }
+
+    @Test
+    void randomUpdatesMatchScan() {
+        Random random = new Random(7);
+        ShopNameTrie trie = new ShopNameTrie(K);
+        Map<Long, Shop> shops = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            long id = 1 + random.nextInt(50);
+            if (random.nextInt(4) == 0) {
+                trie.remove(id);
+                shops.remove(id);
+            } else {
+                Shop shop = shop(id, randomName(random), random.nextInt(5));
+                trie.put(shop);
+                shops.put(id, shop);
+            }
+            if (i % 50 == 0) {
+                assertMatchesScan(trie, shops);
+            }
+        }
+        assertMatchesScan(trie, shops);
+    }
+
+    private static void assertMatchesScan(ShopNameTrie trie, Map<Long, Shop> shops) {
+        assertEquals(shops.size(), trie.stats().get("shops"));
+        for (String prefix : Arrays.asList("a", "b", "c", "aa", "ab", "ba", "cc", "abc")) {
+            for (int limit = 1; limit <= K; limit++) {
+                List<Long> expected = shops.values().stream()
+                        .filter(shop -> shop.getName().startsWith(prefix))
+                        .sorted(Comparator.comparing(Shop::getSold).reversed()
+                                .thenComparing(Comparator.comparing(Shop::getComments).reversed())
+                                .thenComparing(Shop::getId))
+                        .limit(limit)
+                        .map(Shop::getId)
+                        .collect(Collectors.toList());
+                assertEquals(expected, ids(trie.suggest(prefix, limit)), prefix);
+            }
+        }
+    }
+
+    private static String randomName(Random random) {
+        int length = 1 + random.nextInt(4);
+        StringBuilder name = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            name.append("abc".charAt(random.nextInt(3)));
+        }
+        return name.toString();
+    }
+
+    private static Shop shop(Long id, String name, int sold) {
+        return new Shop().setId(id).setName(name).setSold(sold).setComments(0);
+    }
+
+    private static List<Long> ids(List<ShopNameTrie.Doc> docs) {
+        return docs.stream().map(doc -> doc.id).collect(Collectors.toList());
+    }
+}
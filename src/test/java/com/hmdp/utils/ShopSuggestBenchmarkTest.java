@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.impl.ShopServiceImpl;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 店铺名称联想：100万个随机店铺名建立前缀树的耗时、内存，联想的延迟分布，以及数据库 LIKE 'prefix%' 的对比
+ */
+@SpringBootTest
+class ShopSuggestBenchmarkTest {
+
+    private static final int SHOPS = 1_000_000;
+    private static final int QUERIES = 100_000;
+    private static final int DB_QUERIES = 200;
+    private static final int LIMIT = 10;
+    private static final String CHARS = "茶餐厅火锅烧烤咖啡面馆酒吧甜品小吃海鲜川菜湘菜粤菜日料韩料西餐自助快餐奶茶烘焙牛排披萨寿司拉面米线饺子包子粥铺大关西湖滨江萧山余杭拱墅上城";
+
+    @Resource
+    private ShopServiceImpl shopService;
+
+    @Test
+    void benchmark() {
+        Random random = new Random(42);
+        List<Shop> shops = new ArrayList<>(SHOPS);
+        for (long i = 1; i <= SHOPS; i++) {
+            shops.add(new Shop()
+                    .setId(i)
+                    .setName(randomName(random))
+                    .setSold(random.nextInt(10000))
+                    .setComments(random.nextInt(5000)));
+        }
+
+        //1.建立前缀树
+        System.gc();
+        long usedBefore = usedMemory();
+        long begin = System.currentTimeMillis();
+        ShopNameTrie trie = new ShopNameTrie(LIMIT);
+        shops.forEach(trie::put);
+        long buildMillis = System.currentTimeMillis() - begin;
+        System.gc();
+        long usedAfter = usedMemory();
+        System.out.printf("建立前缀树：%d ms，约%d MB，%s%n",
+                buildMillis, (usedAfter - usedBefore) / 1024 / 1024, trie.stats());
+
+        //2.结果与遍历全部店铺一致
+        for (int i = 0; i < 100; i++) {
+            String prefix = prefix(random, shops);
+            List<Long> expected = shops.stream()
+                    .filter(shop -> shop.getName().startsWith(prefix))
+                    .sorted(Comparator.comparing(Shop::getSold).reversed()
+                            .thenComparing(Comparator.comparing(Shop::getComments).reversed())
+                            .thenComparing(Shop::getId))
+                    .limit(LIMIT)
+                    .map(Shop::getId)
+                    .collect(Collectors.toList());
+            List<Long> actual = trie.suggest(prefix, LIMIT).stream()
+                    .map(doc -> doc.id)
+                    .collect(Collectors.toList());
+            assertEquals(expected, actual, prefix);
+        }
+
+        //3.联想延迟
+        String[] prefixes = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            prefixes[i] = prefix(random, shops);
+        }
+        for (String prefix : prefixes) {
+            trie.suggest(prefix, LIMIT);
+        }
+        long[] nanos = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            long start = System.nanoTime();
+            trie.suggest(prefixes[i], LIMIT);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("前缀树联想：p50=%d ns, p99=%d ns, max=%d ns%n",
+                nanos[QUERIES / 2], nanos[QUERIES * 99 / 100], nanos[QUERIES - 1]);
+
+        //4.数据库 LIKE 'prefix%'（数据库中的真实店铺）
+        long dbNanos = 0;
+        for (int i = 0; i < DB_QUERIES; i++) {
+            long start = System.nanoTime();
+            shopService.query()
+                    .select("id", "name")
+                    .likeRight("name", prefixes[i])
+                    .orderByDesc("sold")
+                    .last("LIMIT " + LIMIT)
+                    .list();
+            dbNanos += System.nanoTime() - start;
+        }
+        System.out.printf("数据库联想：avg=%d ns%n", dbNanos / DB_QUERIES);
+    }
+
+    private static String randomName(Random random) {
+        int length = 2 + random.nextInt(7);
+        StringBuilder name = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            name.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        }
+        return name.toString();
+    }
+
+    /**
+     * 随机店铺名的前1~3个字
+     */
+    private static String prefix(Random random, List<Shop> shops) {
+        String name = shops.get(random.nextInt(shops.size())).getName();
+        return name.substring(0, Math.min(name.length(), 1 + random.nextInt(3)));
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}